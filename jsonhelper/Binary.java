@@ -0,0 +1,281 @@
+package jsonhelper;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Compact binary encoding of the messages of this package, an alternative to json that a client picks
+    per request: a body sent with <code>Content-Type: application/x-dfs-binary</code> is read as binary,
+    and a client that sends <code>Accept: application/x-dfs-binary</code> is answered in binary. Without
+    these headers everything stays json.
+
+    <p>
+    A message is its public instance fields in the order of their names; names are not sent, both sides
+    know the class. A boolean is one byte, an int four and a long or double eight, big endian. A String
+    is its length in UTF-8 bytes and the bytes, a length of -1 for null. An array is its element count,
+    -1 for null, and its elements. Any other object is one byte, 0 for null and 1 otherwise, and then
+    its fields.
+
+    <p>
+    Fields marked Raw hold Base64 text in json: the file data of DataReturn and WriteRequest. In binary
+    they are sent as the bytes that text encodes, so the data on the wire is exactly the file data.
+    encode() and decode() convert them; a server that has the bytes at hand passes them in a map
+    instead and never builds the Base64 text.
+
+    <p>
+    A length or count read from the wire is checked against the bytes left in the body before anything
+    is allocated for it, so a bad length is rejected, not an attempt to allocate gigabytes. The body
+    is its Content-Length when the sender gave one, MAX_BODY otherwise.
+
+    <p>
+    A message is created by its public constructor with the fewest parameters, passed null, 0 or false,
+    before its fields are read. The constructors of the messages of this package only store their
+    arguments.
+ */
+public class Binary {
+    public static final String CONTENT_TYPE = "application/x-dfs-binary";
+
+    /** a String field holding Base64 in json, carried as raw bytes in binary */
+    @Retention(RetentionPolicy.RUNTIME)
+    @Target(ElementType.FIELD)
+    public @interface Raw {
+    }
+
+    /** the body decode() accepts when its length is not known */
+    public static final long MAX_BODY = 64L * 1024 * 1024;
+
+    private static final Map<Class<?>, Field[]> FIELDS = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, Constructor<?>> CONSTRUCTORS = new ConcurrentHashMap<>();
+
+    /** whether a Content-Type or Accept header value asks for binary */
+    public static boolean wanted(String header) {
+        return header != null && header.contains(CONTENT_TYPE);
+    }
+
+    /** the length a Content-Length header value gives, -1 if there is none */
+    public static long length(String header) {
+        if (header == null) return -1;
+        try {
+            return Long.parseLong(header.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    public static byte[] encode(Object message) {
+        return encode(message, null);
+    }
+
+    /** encode message; the Raw fields of message named in raw are sent from there instead */
+    public static byte[] encode(Object message, Map<String, byte[]> raw) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            write_fields(new DataOutputStream(bytes), message, raw);
+        } catch (IOException e) {
+            // a ByteArrayOutputStream does not fail
+            throw new IllegalStateException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public static <T> T decode(InputStream in, Class<T> type) throws IOException {
+        return decode(in, -1, type, null);
+    }
+
+    /** decode a message of type from a body of length bytes, -1 if unknown; when raw is given, the Raw
+     *  fields are put there as bytes and left null in the message */
+    public static <T> T decode(InputStream in, long length, Class<T> type, Map<String, byte[]> raw)
+            throws IOException {
+        Body body = new Body(in, length < 0 ? MAX_BODY : length);
+        return type.cast(read_fields(new DataInputStream(body), body, type, raw));
+    }
+
+    /** the body being decoded, counting the bytes still to come */
+    private static final class Body extends FilterInputStream {
+        long left;
+
+        Body(InputStream in, long left) {
+            super(in);
+            this.left = left;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) left--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] into, int offset, int length) throws IOException {
+            int n = super.read(into, offset, length);
+            if (n > 0) left -= n;
+            return n;
+        }
+
+        /** fail unless n more bytes, or elements of at least a byte each, can still be in the body */
+        void check(int n) throws IOException {
+            if (n > left) throw new IOException("length " + n + " is more than the " + left + " bytes left");
+        }
+    }
+
+    /** the fields sent for type, in order */
+    private static Field[] fields(Class<?> type) {
+        return FIELDS.computeIfAbsent(type, t -> {
+            List<Field> fields = new ArrayList<>();
+            for (Field f : t.getFields()) {
+                if (!Modifier.isStatic(f.getModifiers()) && !Modifier.isTransient(f.getModifiers())) fields.add(f);
+            }
+            fields.sort(Comparator.comparing(Field::getName));
+            return fields.toArray(new Field[0]);
+        });
+    }
+
+    private static void write_fields(DataOutputStream out, Object message, Map<String, byte[]> raw)
+            throws IOException {
+        for (Field f : fields(message.getClass())) {
+            Object value;
+            try {
+                value = f.get(message);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+            if (f.isAnnotationPresent(Raw.class)) {
+                byte[] bytes = raw != null && raw.containsKey(f.getName()) ? raw.get(f.getName())
+                        : value == null ? null : Base64.getDecoder().decode((String) value);
+                write_bytes(out, bytes);
+            } else {
+                write(out, f.getType(), value);
+            }
+        }
+    }
+
+    private static void write(DataOutputStream out, Class<?> type, Object value) throws IOException {
+        if (type == boolean.class) out.writeBoolean((Boolean) value);
+        else if (type == int.class) out.writeInt((Integer) value);
+        else if (type == long.class) out.writeLong((Long) value);
+        else if (type == double.class) out.writeDouble((Double) value);
+        else if (type == String.class) write_bytes(out, value == null ? null : ((String) value).getBytes(StandardCharsets.UTF_8));
+        else if (type.isArray()) {
+            if (value == null) {
+                out.writeInt(-1);
+                return;
+            }
+            int n = Array.getLength(value);
+            out.writeInt(n);
+            for (int i = 0; i < n; i++) write(out, type.getComponentType(), Array.get(value, i));
+        } else {
+            out.writeBoolean(value != null);
+            if (value != null) write_fields(out, value, null);
+        }
+    }
+
+    private static void write_bytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /** the public constructor of type with the fewest parameters */
+    private static Constructor<?> constructor(Class<?> type) throws IOException {
+        Constructor<?> found = CONSTRUCTORS.computeIfAbsent(type, t -> {
+            Constructor<?> best = null;
+            for (Constructor<?> c : t.getConstructors()) {
+                if (best == null || c.getParameterCount() < best.getParameterCount()) best = c;
+            }
+            return best;
+        });
+        if (found == null) throw new IOException("no public constructor to create " + type.getName());
+        return found;
+    }
+
+    private static Object create(Class<?> type) throws IOException {
+        Constructor<?> c = constructor(type);
+        Class<?>[] types = c.getParameterTypes();
+        Object[] args = new Object[types.length];
+        for (int i = 0; i < types.length; i++) {
+            // the zero of a primitive type, read from a fresh array of it
+            if (types[i].isPrimitive()) args[i] = Array.get(Array.newInstance(types[i], 1), 0);
+        }
+        try {
+            return c.newInstance(args);
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("cannot create " + type.getName(), e);
+        }
+    }
+
+    private static Object read_fields(DataInputStream in, Body body, Class<?> type, Map<String, byte[]> raw)
+            throws IOException {
+        Object message = create(type);
+        for (Field f : fields(type)) {
+            Object value;
+            if (f.isAnnotationPresent(Raw.class)) {
+                byte[] bytes = read_bytes(in, body);
+                if (raw != null) {
+                    raw.put(f.getName(), bytes);
+                    value = null;
+                } else {
+                    value = bytes == null ? null : Base64.getEncoder().encodeToString(bytes);
+                }
+            } else {
+                value = read(in, body, f.getType());
+            }
+            try {
+                f.set(message, value);
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+        return message;
+    }
+
+    private static Object read(DataInputStream in, Body body, Class<?> type) throws IOException {
+        if (type == boolean.class) return in.readBoolean();
+        if (type == int.class) return in.readInt();
+        if (type == long.class) return in.readLong();
+        if (type == double.class) return in.readDouble();
+        if (type == String.class) {
+            byte[] bytes = read_bytes(in, body);
+            return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+        }
+        if (type.isArray()) {
+            int n = in.readInt();
+            if (n < 0) return null;
+            body.check(n);
+            Object array = Array.newInstance(type.getComponentType(), n);
+            for (int i = 0; i < n; i++) Array.set(array, i, read(in, body, type.getComponentType()));
+            return array;
+        }
+        return in.readBoolean() ? read_fields(in, body, type, null) : null;
+    }
+
+    private static byte[] read_bytes(DataInputStream in, Body body) throws IOException {
+        int n = in.readInt();
+        if (n < 0) return null;
+        body.check(n);
+        byte[] bytes = new byte[n];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
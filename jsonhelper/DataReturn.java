@@ -8,6 +8,7 @@ package jsonhelper;
  * https://stackoverflow.com/questions/20706783/put-byte-array-to-json-and-vice-versa
  */
 public class DataReturn {
+    @Binary.Raw
     public String data;
 
     public DataReturn(String data) {
@@ -0,0 +1,16 @@
+package jsonhelper;
+
+public class LockBatchRequest {
+    public LockRequest[] locks;
+    /** handle returned by /lock_batch; when set, /unlock_batch releases exactly that batch */
+    public String handle;
+    /** who the locks are for, so the naming server can tell requests of one client waiting for each
+     *  other; null to let the naming server tell the client by its Client-Id header or connection */
+    public String owner;
+    /** milliseconds the batch lasts unless renewed through /renew; 0 for the server default */
+    public long lease;
+
+    public LockBatchRequest(LockRequest[] locks) {
+        this.locks = locks;
+    }
+}
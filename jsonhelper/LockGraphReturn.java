@@ -0,0 +1,33 @@
+package jsonhelper;
+
+public class LockGraphReturn {
+    /** a lock request that is waiting */
+    public static class Waiter {
+        public String request;
+        public String owner;
+        /** the path locked, with the byte range if it waits for one */
+        public String path;
+        public String mode;
+        public long waited_ms;
+        /** owners of the locks in its way */
+        public String[] blocked_by;
+
+        public Waiter(String request, String owner, String path, String mode, long waited_ms, String[] blocked_by) {
+            this.request = request;
+            this.owner = owner;
+            this.path = path;
+            this.mode = mode;
+            this.waited_ms = waited_ms;
+            this.blocked_by = blocked_by;
+        }
+    }
+
+    public Waiter[] waiters;
+    /** requests withdrawn to break a deadlock since the naming server started */
+    public long deadlocks;
+
+    public LockGraphReturn(Waiter[] waiters, long deadlocks) {
+        this.waiters = waiters;
+        this.deadlocks = deadlocks;
+    }
+}
@@ -3,6 +3,17 @@ package jsonhelper;
 public class LockRequest {
     public String path;
     public boolean exclusive;
+    /** handle returned by /lock; when set, /unlock releases exactly that lock and ignores the rest */
+    public String handle;
+    /** who the locks are for, so the naming server can tell requests of one client waiting for each
+     *  other; null to let the naming server tell the client by its Client-Id header or connection */
+    public String owner;
+    /** milliseconds the lock lasts unless renewed through /renew; 0 for the server default */
+    public long lease;
+    /** byte range [offset, offset + length) of the file to lock instead of the whole file; a length of
+     *  0 locks the whole file */
+    public long offset;
+    public long length;
 
     public LockRequest(String path, boolean exclusive) {
         this.path = path;
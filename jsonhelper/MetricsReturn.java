@@ -0,0 +1,91 @@
+package jsonhelper;
+
+public class MetricsReturn {
+    /** the worker pool of one skeleton */
+    public static class Skeleton {
+        public String name;
+        public int workers;
+        /** workers running a request right now */
+        public int active;
+        /** requests waiting for a worker, and how many may wait before new ones are rejected */
+        public int queued;
+        public int queue_capacity;
+        /** requests handed to a worker, and requests answered 503 because none was free */
+        public long admitted;
+        public long rejected;
+        /** time admitted requests waited for a worker */
+        public double mean_wait_ms;
+        public double max_wait_ms;
+
+        public Skeleton(String name, int workers, int active, int queued, int queue_capacity, long admitted,
+                        long rejected, double mean_wait_ms, double max_wait_ms) {
+            this.name = name;
+            this.workers = workers;
+            this.active = active;
+            this.queued = queued;
+            this.queue_capacity = queue_capacity;
+            this.admitted = admitted;
+            this.rejected = rejected;
+            this.mean_wait_ms = mean_wait_ms;
+            this.max_wait_ms = max_wait_ms;
+        }
+    }
+
+    /** the requests the server made to other servers */
+    public static class Peers {
+        public long requests;
+        /** connections opened, and requests served by a pooled connection instead */
+        public long handshakes;
+        public long reused;
+        /** requests that failed or timed out */
+        public long failed;
+        /** share of the requests sent over a pooled connection */
+        public double reuse_rate;
+
+        public Peers(long requests, long handshakes, long reused, long failed, double reuse_rate) {
+            this.requests = requests;
+            this.handshakes = handshakes;
+            this.reused = reused;
+            this.failed = failed;
+            this.reuse_rate = reuse_rate;
+        }
+    }
+
+    /** the lock table of the naming server */
+    public static class Locks {
+        /** entries in the table now, ever created, and dropped once nobody used them */
+        public long live_entries;
+        public long created_entries;
+        public long reclaimed_entries;
+        /** requests holding locks now */
+        public long held;
+        /** holds taken back because their lease ran out, and requests withdrawn to break a deadlock */
+        public long expired_leases;
+        public long deadlocks;
+
+        public Locks(long live_entries, long created_entries, long reclaimed_entries, long held,
+                     long expired_leases, long deadlocks) {
+            this.live_entries = live_entries;
+            this.created_entries = created_entries;
+            this.reclaimed_entries = reclaimed_entries;
+            this.held = held;
+            this.expired_leases = expired_leases;
+            this.deadlocks = deadlocks;
+        }
+    }
+
+    public Skeleton[] skeletons;
+    public Peers peers;
+    /** null on a storage server, which has no locks */
+    public Locks locks;
+
+    public MetricsReturn(Skeleton[] skeletons, Peers peers) {
+        this(skeletons, peers, null);
+    }
+
+    public MetricsReturn(Skeleton[] skeletons, Peers peers, Locks locks) {
+        this.skeletons = skeletons;
+        this.peers = peers;
+        this.locks = locks;
+    }
+}
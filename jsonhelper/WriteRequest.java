@@ -3,6 +3,7 @@ package jsonhelper;
 public class WriteRequest {
     public String path;
     public long offset;
+    @Binary.Raw
     public String data;
 
     // Note: data should be a byte[] after base64 encoding
@@ -1,442 +1,393 @@
 package naming;
 
-import jsonhelper.CopyRequest;
-import jsonhelper.PathRequest;
-import java.io.IOException;
-import java.net.URI;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import com.google.gson.Gson;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
 
-/** This class sets up the main data structure that the naming server use to track the files and directories*/
+/** A node of the heap namespace, the data structure that the naming server uses by default to track the
+    files and directories. HeapNamespace exposes it through the Namespace interface.
+
+    <p>
+    A node only keeps its own name and a pointer to its parent; the full path is rebuilt by toString()
+    when it is needed. The children of a small directory are kept in an array sorted by name and found
+    by binary search, which costs little memory and at most SMALL_DIR copies per change. A directory
+    that outgrows it moves its children to an open addressing hash table on their name, so finding or
+    adding a child costs the same in a directory of a thousand entries as in one of a million; only
+    listing it sorts the names. The table holds the nodes themselves, a few bytes per child, where a
+    hash map would add an entry and a key object to each. The hosting server and the replica servers are
+    ids into the StorageTable, and files that were never replicated carry no replica array at all. Only
+    nodes read from an image carry the offset of their record there, see Mapped.
+
+    <p>
+    Queries never lock. A children array is never modified once published: writers build a new one. In
+    a Table, writers fill or clear one slot at a time with release stores and readers probe it with
+    acquire loads; growing it builds a new table that is published as a whole. Writers of a directory
+    hold its monitor, so they see each other's changes in order. A reader takes the monitor only the
+    first time it meets a child that is still in the image, to add it without racing a writer that
+    materializes the directory and deletes that child.
+ */
 public class Address {
-    /** list of files it contains if self is directory */
-    private List<Address> children;
-    private String path;
-    /** whether the curr file is directory or not*/
-    private boolean isDir;
-    // 如果只需要一个的话必须是static否则会重复initialize造成stackoverflow
-    /** start as the root !*/
-    protected static final Address start = new Address();
-    /** info of the storage server that hosts this file*/
-    private StorageInfo si;
+    /** shared by every node without children */
+    private static final Address[] NO_CHILDREN = new Address[0];
+    /** children a directory keeps in a sorted array; past that they go to a Table */
+    private static final int SMALL_DIR = 256;
+    /** marks the slot of a removed child in a Table, so probes for the children after it go on */
+    private static final Address REMOVED = new Address(new byte[0], null, (byte) 0, StorageTable.NONE);
+    private static final VarHandle SLOT = MethodHandles.arrayElementVarHandle(Address[].class);
+    private static final byte FLAG_DIR = 1;
+    /** set when every child of the node is in children, see materialize() */
+    private static final byte FLAG_MATERIALIZED = 2;
+
+    /** last component of the path in utf-8, the key of this node in its parent's children */
+    private final byte[] name;
+    private final Address parent;
+    /** children if self is directory: an Address[] sorted by name while there are at most SMALL_DIR of
+     *  them, a Table after. An array is only ever replaced as a whole */
+    private volatile Object children;
+    /** whether the curr file is directory or not, and whether it is materialized */
+    private volatile byte flags;
+    /** id of the storage server that hosts this file*/
+    private volatile int server;
     /** number of times that this file is being accessed*/
     private int accessNum;
-    /** list of replica storage servers that have copies (not host) of this file*/
-    private List<StorageInfo> replicaServers;
-    /** gson obj for parsing json*/
-    protected static final Gson gson = new Gson();
-
-    /** initialize as a normal directory by default. Field subject to change if it is a file */
-    public Address(String path){
-        this.path = path;
-        this.children = new ArrayList<>();
-        this.isDir = true; // true by default
-        this.si = null;
-        this.accessNum = 0;
-        this.replicaServers = new ArrayList<>();
-    }
-    /** initialize the root dir */
-    public Address(){
-        this.path = "";
-        this.children = new ArrayList<>();
-        this.isDir = true;
-        this.si = null;
-    }
-
-    /** set self to be file*/
-    public void set_isFile(){
-        this.isDir = false;
-    }
-    /** get the storage server that host this file*/
-    public StorageInfo get_serverInfo(){
-        Address curr = start;
-        String[] parts = eliminate_spaces(this.path);
-        for (int i = 0; i < parts.length; i++){
-            Address candi = new Address(curr.path + "/" + parts[i]);
-            if (!curr.children.contains(candi)){
-                return null;
-            }else{
-                for (Address child : curr.children){
-                    if (child.equals(candi)){
-                        curr = child;
-                        break;
-                    }
-                }
-            }
+    /** ids of replica storage servers that have copies (not host) of this file, null if none */
+    private volatile int[] replicas;
+    // 如果只需要一个的话必须是static否则会重复initialize造成stackoverflow
+    /** start as the root !*/
+    protected static final Address start = new Address(new byte[0], null, (byte) (FLAG_DIR | FLAG_MATERIALIZED),
+            StorageTable.NONE);
+    /** mapped namespace image the tree was loaded from, null when it was built from scratch */
+    private static NamespaceImage image;
+
+    /** the children of a large directory: open addressing with linear probing on the hash of the name.
+     *  Slots are null when free and REMOVED once their child was unlinked; at most two thirds of them
+     *  are used, so a probe always ends at a null */
+    private static final class Table {
+        /** a power of two long */
+        final Address[] slots;
+        /** children in the table, and slots not null. Guarded by the monitor of the directory */
+        int size;
+        int used;
+
+        Table(int capacity) {
+            this.slots = new Address[capacity];
         }
-        return curr.si;
     }
 
-    public List<StorageInfo> get_replica_servers(){
-        return this.replicaServers;
+    /** a node read from the image, which keeps the offset of its record there to find its children */
+    private static final class Mapped extends Address {
+        final long node;
+
+        Mapped(Address parent, long node){
+            super(image.name_bytes(node), parent,
+                    image.is_dir(node) ? FLAG_DIR : FLAG_MATERIALIZED, image.server_id(node));
+            this.node = node;
+        }
+    }
+
+    private Address(byte[] name, Address parent, byte flags, int server){
+        this.name = name;
+        this.parent = parent;
+        this.children = NO_CHILDREN;
+        this.flags = flags;
+        this.server = server;
+    }
+
+    private Address(byte[] name, Address parent, boolean dir, int server){
+        this(name, parent, (byte) ((dir ? FLAG_DIR : 0) | FLAG_MATERIALIZED), server);
     }
 
-    public void add_new_replica_server(StorageInfo si){
-        this.replicaServers.add(si);
+    /** make the root read its children from the image. Called once at start up before any request */
+    static void attach(NamespaceImage mapped){
+        image = mapped;
+        start.children = NO_CHILDREN;
+        start.flags = FLAG_DIR;
     }
 
-    public void remove_one_replica_server(StorageInfo si){
-        this.replicaServers.remove(si);
+    /** offset of the record of this node in the image; only asked of nodes that are not materialized,
+     *  which are the root of an attached image and nodes read from it */
+    private long image_node(){
+        return this == start ? image.root() : ((Mapped) this).node;
+    }
+
+    public String get_name(){
+        return new String(this.name, StandardCharsets.UTF_8);
+    }
+
+    /** get the storage server that host this file */
+    public StorageInfo get_serverInfo(){
+        return StorageTable.get(this.server);
+    }
+
+    public List<StorageInfo> get_replica_servers(){
+        List<StorageInfo> result = new ArrayList<>();
+        if (replicas != null) for (int id : replicas) result.add(StorageTable.get(id));
+        return result;
     }
 
     public boolean get_is_dir(){
-        return this.isDir;
+        return (this.flags & FLAG_DIR) != 0;
     }
 
+    private boolean materialized(){
+        return (this.flags & FLAG_MATERIALIZED) != 0;
+    }
 
+    /** the absolute path, rebuilt from the parent pointers */
     @Override
-    public boolean equals(Object o) {
-        if (!(o instanceof Address)) {
-            return false;
+    public String toString() {
+        if (parent == null) return "";
+        return parent.toString() + "/" + get_name();
+    }
+
+    /** index of name in children, or -(insertion point) - 1 like Arrays.binarySearch */
+    private static int search(Address[] children, byte[] name){
+        int low = 0;
+        int high = children.length - 1;
+        while (low <= high){
+            int mid = (low + high) >>> 1;
+            int cmp = Arrays.compareUnsigned(children[mid].name, name);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return mid;
         }
-        Address other = (Address) o;
-        return other.path.equals(path);
+        return -(low + 1);
     }
 
-    @Override
-    public String toString() {
-        return path;
+    /** slot of a Table of the given length that the probe for name starts at */
+    private static int slot(byte[] name, int length){
+        int h = Arrays.hashCode(name);
+        return (h ^ (h >>> 16)) & (length - 1);
     }
 
-    public static String[] eliminate_spaces(String path){
-        List<String> result = new ArrayList<>();
-        String[] parts = path.split("/");
-        for (String each : parts){
-            if (!each.equals("")) result.add(each);
+    /** the child called name in slots, or null. Runs concurrently with writers */
+    private static Address lookup(Address[] slots, byte[] name){
+        int mask = slots.length - 1;
+        for (int i = slot(name, slots.length); ; i = (i + 1) & mask){
+            Address each = (Address) SLOT.getAcquire(slots, i);
+            if (each == null) return null;
+            if (each != REMOVED && Arrays.equals(each.name, name)) return each;
         }
-        return result.toArray(new String[0]);
-    }
-
-    /** 如果有一个路径不匹配就返回false 必须得一模一样才行 */
-    public boolean exist(){
-        Address curr = start;
-        String[] parts = eliminate_spaces(this.path);
-        for (int i = 0; i < parts.length; i++){
-            Address candi = new Address(curr.path + "/" + parts[i]);
-            if (!curr.children.contains(candi)){
-                return false;
-            }else{
-                for (Address child : curr.children){
-                    if (child.equals(candi)){
-                        curr = child;
-                        break;
-                    }
-                }
-            }
+    }
+
+    /** index of the slot of the child called name in slots, or -1; the caller holds the monitor */
+    private static int probe(Address[] slots, byte[] name){
+        int mask = slots.length - 1;
+        for (int i = slot(name, slots.length); slots[i] != null; i = (i + 1) & mask){
+            if (slots[i] != REMOVED && Arrays.equals(slots[i].name, name)) return i;
         }
-        return true;
-    }
-
-    /** adds the file from the scratch upon registration*/
-    public void add(StorageInfo si){
-        Address curr = start;
-        String[] parts = eliminate_spaces(this.path);
-        for (int i = 0; i < parts.length; i++){
-            Address candi = new Address(curr.path + "/" + parts[i]);
-            if (!curr.children.contains(candi)){
-                if (i == parts.length - 1){
-                    candi.set_isFile();
-                }
-                curr.children.add(candi);
-                curr = candi;
-                curr.si = si;   //  刚加的 不一定对！！！！
-            }else{
-                for (Address each : curr.children){
-                    if (candi.equals(each)){
-                        curr = each;
-                        curr.si = si;   // 刚加的 不一定对！！！！
-                        break;
-                    }
-                }
-            }
+        return -1;
+    }
+
+    /** the child called name among the children already on the heap, or null */
+    private static Address find(Object children, byte[] name){
+        if (children instanceof Address[]){
+            Address[] sorted = (Address[]) children;
+            int i = search(sorted, name);
+            return i >= 0 ? sorted[i] : null;
         }
-        curr.si = si;
-    }
-    /** delete the file totally from the data structure including copies */
-    public void delete(){
-        Address curr = start;
-        String[] parts = eliminate_spaces(this.path);
-        for (int i = 0; i < parts.length; i++){
-            Address candi = new Address(curr.path + "/" + parts[i]);
-            for (Address each : curr.children){
-                if (candi.equals(each)) {
-                    if (i != parts.length - 1) {
-                        curr = each;
-                        break;
-                    } else {
-                        if (!each.is_Directory()){
-                            deleteReplicas(each);
-                            PathRequest pr = new PathRequest(each.toString());
-                            try{
-                                HttpResponse<String> response = getResponse(each.get_serverInfo().server_ip,
-                                        candi.get_serverInfo().command_port, "/storage_delete", pr);
-                            }catch(IOException e){
-                                e.printStackTrace();
-                            }catch(InterruptedException e){
-                                e.printStackTrace();
-                            }
-                            curr.children.remove(each);
-                            return;
-                        }else{
-                            for (Address child : each.children){
-                                if (!child.is_Directory()){
-                                    deleteReplicas(child);
-                                    PathRequest pr = new PathRequest(each.toString());
-                                    try{
-                                        HttpResponse<String> response = getResponse(child.get_serverInfo().server_ip,
-                                                child.get_serverInfo().command_port, "/storage_delete", pr);
-                                    }catch(IOException e){
-                                        e.printStackTrace();
-                                    }catch(InterruptedException e){
-                                        e.printStackTrace();
-                                    }
-                                    deleteReplicas(each);
-                                    try{
-                                        HttpResponse<String> response = getResponse(each.get_serverInfo().server_ip,
-                                                each.get_serverInfo().command_port, "/storage_delete", pr);
-                                    }catch(IOException e){
-                                        e.printStackTrace();
-                                    }catch(InterruptedException e){
-                                        e.printStackTrace();
-                                    }
-                                    curr.children.remove(each);
-                                    return;
-                                }
-                            }
-
-                        }
-
-                    }
-                }
-            }
+        return lookup(((Table) children).slots, name);
+    }
+
+    /** a table sized for size children, with them in it */
+    private static Table table(Iterable<Address> children, int size){
+        Table table = new Table(Integer.highestOneBit(Math.max(size, 1) * 2) * 2);
+        int mask = table.slots.length - 1;
+        for (Address each : children){
+            int i = slot(each.name, table.slots.length);
+            while (table.slots[i] != null) i = (i + 1) & mask;
+            table.slots[i] = each;
         }
+        table.size = size;
+        table.used = size;
+        return table;
     }
-    /** return true if directory created successfullly, false otherwise */
-    public boolean create_directory(){
-        Address curr = start;
-        String[] parts = eliminate_spaces(this.path);
-        for (int i = 0; i < parts.length; i++){
-            Address candi = new Address(curr.path + "/" + parts[i]);
-            if (!curr.children.contains(candi)){
-                if (i != parts.length - 1){
-                    return false;
-                }
-                curr.children.add(candi);
-                curr = candi;
-            }else{
-                for (Address each : curr.children){
-                    if (candi.equals(each)){
-                        // parent dir is actually file, not good
-                        if (!each.get_is_dir()) return false;
-                        curr = each;
-                        break;
-                    }
-                }
-            }
+
+    /** the child called name, or null if there is none. One binary search or hash lookup, unless the
+     *  child still lives in the image: it is then found by a binary search there and cached */
+    private Address child(byte[] name){
+        Address found = find(children, name);
+        if (found != null || materialized()) return found;
+        long node = image.find_child(image_node(), name);
+        if (node < 0) return null;
+        synchronized (this){
+            // another reader may have cached the child first, and materialize() may have run meanwhile
+            // after which the child may have been deleted
+            found = find(children, name);
+            if (found != null || materialized()) return found;
+            found = new Mapped(this, node);
+            put(found);
+            return found;
         }
+    }
 
-        return true;
-    }
-    /** return true if file created successfullly, false otherwise */
-    public boolean create_file(){
-        Address curr = start;
-        String[] parts = eliminate_spaces(this.path);
-        for (int i = 0; i < parts.length; i++){
-            Address candi = new Address(curr.path + "/" + parts[i]);
-            if (!curr.children.contains(candi)){
-                // parent dir not exist; x create file
-                if (i != parts.length - 1){
-                    return false;
-                }
-                candi.set_isFile();
-                curr.children.add(candi);
-                curr = candi;
-            }else{
-                for (Address each : curr.children){
-                    if (candi.equals(each)){
-                        // parent dic is actually file; not good
-                        if (!each.get_is_dir()) return false;
-                        curr = each;
-                        break;
-                    }
-                }
+    /** add a child that is not there yet; the caller holds the monitor */
+    private void put(Address child){
+        Object current = children;
+        if (current instanceof Address[]){
+            Address[] sorted = (Address[]) current;
+            if (sorted.length < SMALL_DIR){
+                int at = -(search(sorted, child.name) + 1);
+                Address[] result = new Address[sorted.length + 1];
+                System.arraycopy(sorted, 0, result, 0, at);
+                result[at] = child;
+                System.arraycopy(sorted, at, result, at + 1, sorted.length - at);
+                children = result;
+                return;
             }
+            // too many to copy on every change; readers see the array until the table is complete
+            List<Address> all = new ArrayList<>(Arrays.asList(sorted));
+            all.add(child);
+            children = table(all, all.size());
+            return;
         }
-        return true;
-    }
-
-    public boolean is_Directory(){
-        Address curr = start;
-        String[] parts = eliminate_spaces(this.path);
-        for (int i = 0; i < parts.length; i++){
-            Address candi = new Address(curr.path + "/" + parts[i]);
-            for (Address each : curr.children) {
-                if (candi.equals(each)) {
-                    curr = each;
-                    break;
-                }
-            }
+        Table table = (Table) current;
+        if ((table.used + 1) * 3 > table.slots.length * 2){
+            // rebuilt without the removed slots, and twice as large if it is full of children
+            List<Address> all = new ArrayList<>(table.size + 1);
+            for (Address each : table.slots) if (each != null && each != REMOVED) all.add(each);
+            all.add(child);
+            children = table(all, all.size());
+            return;
         }
-        return curr.get_is_dir();
+        Address[] slots = table.slots;
+        int mask = slots.length - 1;
+        int i = slot(child.name, slots.length);
+        while (slots[i] != null && slots[i] != REMOVED) i = (i + 1) & mask;
+        if (slots[i] == null) table.used++;
+        table.size++;
+        SLOT.setRelease(slots, i, child);
     }
 
-    public List<String> list_under_dir(){
-        Address curr = start;
-        List<String> result = new ArrayList<>();
-        // if not the root
-        if (!this.path.equals("/")){
-            String[] parts = eliminate_spaces(this.path);
-            for (int i = 0; i < parts.length; i++){
-                Address candi = new Address(curr.path + "/" + parts[i]);
-                for (Address each : curr.children){
-                    if (candi.equals(each)) {
-                        curr = each;
-                        break;
-                    }
-                }
-            }
+    /** remove the child called name if it is there; the caller holds the monitor */
+    private void unlink(byte[] name){
+        materialize();
+        Object current = children;
+        if (current instanceof Table){
+            Table table = (Table) current;
+            int i = probe(table.slots, name);
+            if (i < 0) return;
+            table.size--;
+            SLOT.setRelease(table.slots, i, REMOVED);
+            return;
         }
-        // if it IS root
-        for (Address each : curr.children){
-            String[] parts2 = eliminate_spaces(each.path);
-            result.add(parts2[parts2.length - 1]);
+        Address[] sorted = (Address[]) current;
+        int i = search(sorted, name);
+        if (i < 0) return;
+        if (sorted.length == 1){
+            children = NO_CHILDREN;
+            return;
         }
-        return result;
+        Address[] result = new Address[sorted.length - 1];
+        System.arraycopy(sorted, 0, result, 0, i);
+        System.arraycopy(sorted, i + 1, result, i, sorted.length - i - 1);
+        children = result;
     }
 
-    /** increase the access time of the file and check if it is larger than 20*/
-    public boolean incAccessTime(int multiple) {
-        if (++accessNum > multiple) {
-            accessNum = 0;
-            return true;
+    /** copy every child still in the image to the heap; must precede any change to children */
+    private void materialize(){
+        if (materialized()) return;
+        synchronized (this){
+            if (materialized()) return;
+            long self = image_node();
+            for (int i = 0, n = image.child_count(self); i < n; i++){
+                long node = image.child(self, i);
+                byte[] key = image.name_bytes(node);
+                if (find(children, key) == null) put(new Mapped(this, node));
+            }
+            flags |= FLAG_MATERIALIZED;
         }
-        return false;
     }
 
-    public void resetAccess(){
-        accessNum = 0;
+    /** the children on the heap in name order */
+    private static List<Address> sorted(Object children){
+        if (children instanceof Address[]) return Arrays.asList((Address[]) children);
+        Address[] slots = ((Table) children).slots;
+        List<Address> result = new ArrayList<>();
+        for (int i = 0; i < slots.length; i++){
+            Address each = (Address) SLOT.getAcquire(slots, i);
+            if (each != null && each != REMOVED) result.add(each);
+        }
+        result.sort((a, b) -> Arrays.compareUnsigned(a.name, b.name));
+        return result;
     }
 
-    /** list all the files like literally ALL the files */
-    public static List<Address> list(){
+    /** the children of this node in name order, without materializing it. Children only in the image are
+     *  returned as transient nodes that are not linked into the tree */
+    List<Address> children_view(){
+        Object cached = children;
+        if (materialized()) return sorted(cached);
         List<Address> result = new ArrayList<>();
-        Address curr = start;
-        dfs(result, curr);
+        long self = image_node();
+        for (int i = 0, n = image.child_count(self); i < n; i++){
+            long node = image.child(self, i);
+            Address each = find(cached, image.name_bytes(node));
+            result.add(each != null ? each : new Mapped(this, node));
+        }
         return result;
     }
 
-    public static void dfs(List<Address> result, Address curr){
-        for (Address child : curr.children){
-            result.add(child);
-            dfs(result, child);
-        }
+    /** the child called name, or null if there is none */
+    Address child(String name){
+        return child(name.getBytes(StandardCharsets.UTF_8));
     }
-    /** lock according to whether the candidate is file or directory */
-    public static void lock_along_the_path(String path, boolean exclusive, ConcurrentHashMap<Address, RWLock> map,
-                                           List<StorageInfo> registered_servers){
-        Address curr = start;
-        String[] parts = eliminate_spaces(path);
-        for (int i = 0; i < parts.length; i++){
-            Address candi = new Address(curr.path + "/" + parts[i]);
-            if (curr.children.contains(candi)){
-                for (Address each : curr.children){
-                    if (candi.equals(each)){
-                        curr = each;
-                        if (!map.containsKey(curr)) map.put(curr, new RWLock());
-                        break;
-                    }
-                }
-                try{
-                    // if file and it is write request, lock exclusive
-                    if (exclusive && i == parts.length - 1){
-                        map.get(curr).lockExclusive();
-                            curr.resetAccess();
-                            deleteReplicas(curr);
-                    }else{
-                        map.get(curr).lockShared();
-                        // if file and being accessed larger than 20 times
-                        if (!curr.is_Directory() && curr.incAccessTime(20)){
-                            replicate(curr, registered_servers);
-                        }
-                    }
-                }catch(InterruptedException e){
-                    e.printStackTrace();
-                }
-            }else{
-                unlock_previous(curr.path + "/" + parts[i], false, map);
+
+    /** the child called name, added with the given type and server id if it is not there yet */
+    Address insert(String name, boolean dir, int server){
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        Address next = child(key);
+        if (next != null) return next;
+        synchronized (this){
+            materialize();
+            next = find(children, key);
+            if (next == null){
+                next = new Address(key, this, dir, server);
+                put(next);
             }
+            return next;
+        }
+    }
 
+    /** unlink the child called name with its subtree, if it is there */
+    void remove(String name){
+        synchronized (this){
+            unlink(name.getBytes(StandardCharsets.UTF_8));
         }
+    }
 
+    void set_server(int server){
+        this.server = server;
     }
-    /** unlock everything that are ancestors of the file besides the file itself */
-    public static void unlock_previous(String path, boolean exclusive, ConcurrentHashMap<Address, RWLock> map){
-        Address curr = start;
-        String[] parts = eliminate_spaces(path);
-        for (int i = 0; i < parts.length; i++){
-            Address candi = new Address(curr.path + "/" + parts[i]);
-            if (curr.children.contains(candi)){
-                for (Address each : curr.children){
-                    if (candi.equals(each)){
-                        curr = each;
-                        break;
-                    }
-                }
-                if (exclusive && i == parts.length - 1){
-                    map.get(curr).unlockExclusive();
-                }else{
-                    map.get(curr).unlockShared();
-                }
-            }
-        }
+
+    void set_replicas(int[] replicas){
+        this.replicas = replicas;
     }
-    /** Let every storage server except the server hosting the file has the copy of the file */
-    private static void replicate(Address candi, List<StorageInfo> registered_servers){
-        // 因为你身为storage server你不能用自己的command stub给自己的client stub发lol
-        for (StorageInfo si : registered_servers){
-            if (!candi.get_replica_servers().contains(si) && !candi.get_serverInfo().equals(si)){
-                candi.add_new_replica_server(si);
-                CopyRequest cr = new CopyRequest(candi.toString(), candi.get_serverInfo().server_ip,
-                        candi.get_serverInfo().client_port);
-                try{
-                    HttpResponse<String> response = getResponse(si.server_ip, si.command_port, "/storage_copy", cr);
-                }catch(IOException e){
-                    System.out.println(e.getMessage());
-                }catch(InterruptedException e){
-                    System.out.println(e.getMessage());
-                }
-            }
+
+    /** names of the children of this node of the tree */
+    public List<String> list_under_dir(){
+        List<String> result = new ArrayList<>();
+        if (materialized()){
+            for (Address each : sorted(children)) result.add(each.get_name());
+            return result;
         }
-    }
-    /** delete every copy that other storage server is hosting*/
-    private static void deleteReplicas(Address candi){
-        for (int i = 0; i < candi.get_replica_servers().size(); i++){
-            PathRequest pr = new PathRequest(candi.toString());
-            try{
-                HttpResponse<String> response = getResponse(candi.get_replica_servers().get(i).server_ip,
-                        candi.get_replica_servers().get(i).command_port, "/storage_delete", pr);
-                candi.remove_one_replica_server(candi.get_replica_servers().get(i));
-            }catch(IOException e){
-                e.printStackTrace();
-            }catch(InterruptedException e){
-                e.printStackTrace();
-            }
+        long self = image_node();
+        for (int i = 0, n = image.child_count(self); i < n; i++){
+            result.add(image.name(image.child(self, i)));
         }
+        return result;
     }
 
-    private static HttpResponse<String> getResponse(String ip, int port, String api, Object obj) throws IOException,
-            InterruptedException{
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://" + ip + ":" + port + api))
-                .setHeader("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(obj)))
-                .build();
-        return client.send(request, HttpResponse.BodyHandlers.ofString());
+    /** increase the access time of the file and check if it is larger than 20*/
+    public boolean incAccessTime(int multiple) {
+        if (++accessNum > multiple) {
+            accessNum = 0;
+            return true;
+        }
+        return false;
     }
 
+    public void resetAccess(){
+        accessNum = 0;
+    }
 }
@@ -0,0 +1,221 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Finds lock requests that wait for each other forever and withdraws one of them.
+
+    <p>
+    The wait-for graph has the owners of the requests as vertices, since it is an owner that holds
+    some locks while it waits for others. A request waiting for a lock has an edge to the owner of
+    every holder of that lock in a conflicting mode, and of every request queued there before it in
+    a conflicting mode. The nodes a waiting request was granted already count as held by its owner.
+    A cycle means none of its owners will ever release anything.
+
+    <p>
+    Clients that name no owner are known by their connection (LockManager.CONNECTION), and only
+    the locks they take over one connection are taken to be one owner's. A connection is never taken
+    to wait for itself: a client that pools its connections sends the requests of several threads
+    over each, and one of them waiting for a lock another took over the same connection is not a
+    deadlock.
+
+    <p>
+    A thread looks at the waiting requests every period, and only builds the graph when one of them
+    has been waiting for longer than that, so requests that are merely slow cost nothing. Of the
+    requests on a cycle the one waiting for the shortest time is withdrawn, and its client gets a
+    DeadlockException; the others then go on. The edges are taken from a snapshot that the lock
+    manager keeps changing, so a cycle is only acted on if its victim is still queued.
+
+    <p>
+    Upgrades (LockManager.upgrade()) are not in the graph: a hold waiting to turn its shared lock
+    exclusive is neither a vertex nor an edge, and cannot be withdrawn. Two holders upgrading the same
+    lock, the deadlock upgrades are known for, never wait: the second one fails at once. A cycle that
+    runs through an upgrade and a lock on another node, say an owner upgrading /a while a reader of
+    /a waits for /b, which that owner holds, is not found; it lasts until one of its holds is
+    unlocked or its lease runs out.
+ */
+public class DeadlockDetector {
+    /** victims withdrawn in one pass at most, should cycles keep forming */
+    private static final int MAX_VICTIMS = 64;
+
+    /** a waiting request as seen by one pass */
+    public static class Wait {
+        final LockManager.Hold hold;
+        /** the step of the request waited for: a node, or the range once at is nodes.length */
+        final int at;
+        final long since;
+        /** owners in its way */
+        final Set<String> blockers = new LinkedHashSet<>();
+
+        Wait(LockManager.Hold hold, int at, long since) {
+            this.hold = hold;
+            this.at = at;
+            this.since = since;
+        }
+
+        boolean on_range() {
+            return at == hold.nodes.length;
+        }
+
+        /** the node waited for, or the node of the range */
+        Object node() {
+            return on_range() ? hold.target : hold.nodes[at];
+        }
+    }
+
+    /** a lock somebody holds */
+    private static class Held {
+        final LockManager.Hold hold;
+        final int mode;
+        final RangeLock.Range range;
+
+        Held(LockManager.Hold hold, int mode, RangeLock.Range range) {
+            this.hold = hold;
+            this.mode = mode;
+            this.range = range;
+        }
+    }
+
+    private final LockManager locks;
+    private final long period;
+
+    DeadlockDetector(LockManager locks, long period_ms) {
+        this.locks = locks;
+        this.period = period_ms * 1_000_000L;
+        Thread detector = new Thread(this::detect_loop, "deadlock-detector");
+        detector.setDaemon(true);
+        detector.start();
+    }
+
+    private void detect_loop() {
+        while (true) {
+            try {
+                Thread.sleep(period / 1_000_000L);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            boolean stuck = false;
+            for (LockManager.Hold hold : locks.waiting()) {
+                synchronized (hold) {
+                    if (now - hold.since > period) stuck = true;
+                }
+            }
+            if (!stuck) continue;
+            for (int i = 0; i < MAX_VICTIMS && detect(); i++) ;
+        }
+    }
+
+    /** the requests waiting right now, oldest first, each with the owners in its way */
+    public List<Wait> waits() {
+        List<Wait> waits = new ArrayList<>();
+        for (LockManager.Hold hold : locks.waiting()) {
+            synchronized (hold) {
+                waits.add(new Wait(hold, hold.at, hold.since));
+            }
+        }
+        waits.sort(Comparator.comparingLong(w -> w.since));
+        // holders of each node, and of ranges by node
+        Map<Object, List<Held>> held = new HashMap<>();
+        Map<Object, List<Held>> ranges = new HashMap<>();
+        for (LockManager.Hold hold : locks.granted()) add(held, ranges, hold, hold.nodes.length + 1);
+        for (Wait w : waits) add(held, ranges, w.hold, w.at);
+        // the requests queued on each node so far, to find the ones queued ahead
+        Map<Object, List<Wait>> queued = new HashMap<>();
+        Map<Object, List<Wait>> queued_ranges = new HashMap<>();
+        for (Wait w : waits) {
+            Map<Object, List<Wait>> queue = w.on_range() ? queued_ranges : queued;
+            Map<Object, List<Held>> holders = w.on_range() ? ranges : held;
+            for (Held h : holders.getOrDefault(w.node(), List.of())) {
+                if (h.hold != w.hold && conflicts(w, h.mode, h.range)) block(w, h.hold.owner);
+            }
+            List<Wait> ahead = queue.computeIfAbsent(w.node(), node -> new ArrayList<>());
+            for (Wait a : ahead) {
+                if (conflicts(w, a.on_range() ? 0 : a.hold.modes[a.at], a.hold.range)) block(w, a.hold.owner);
+            }
+            ahead.add(w);
+        }
+        return waits;
+    }
+
+    /** count owner among the owners in the way of w, unless w is a connection waiting for itself */
+    private static void block(Wait w, String owner) {
+        if (owner.equals(w.hold.owner) && owner.startsWith(LockManager.CONNECTION)) return;
+        w.blockers.add(owner);
+    }
+
+    /** record the locks of hold granted before step at */
+    private static void add(Map<Object, List<Held>> held, Map<Object, List<Held>> ranges, LockManager.Hold hold,
+                            int at) {
+        for (int i = 0; i < Math.min(at, hold.nodes.length); i++) {
+            held.computeIfAbsent(hold.nodes[i], node -> new ArrayList<>()).add(new Held(hold, hold.modes[i], null));
+        }
+        if (at > hold.nodes.length && hold.range != null) {
+            ranges.computeIfAbsent(hold.target, node -> new ArrayList<>()).add(new Held(hold, 0, hold.range));
+        }
+    }
+
+    /** whether the lock w waits for conflicts with a lock in mode, or on range when w waits for a range */
+    private static boolean conflicts(Wait w, int mode, RangeLock.Range range) {
+        if (w.on_range()) return w.hold.range.conflicts(range);
+        return RWLock.conflicts(w.hold.modes[w.at], mode);
+    }
+
+    /** withdraw the most recent request of a cycle of owners waiting for each other; returns whether
+     *  there was one */
+    private boolean detect() {
+        Map<String, List<Wait>> by_owner = new HashMap<>();
+        for (Wait w : waits()) by_owner.computeIfAbsent(w.hold.owner, owner -> new ArrayList<>()).add(w);
+        Map<String, Boolean> visited = new HashMap<>();
+        for (String owner : by_owner.keySet()) {
+            if (visited.containsKey(owner)) continue;
+            List<Wait> cycle = visit(owner, by_owner, visited, new ArrayList<>());
+            if (cycle == null) continue;
+            Wait victim = cycle.get(0);
+            List<String> reason = new ArrayList<>();
+            for (Wait w : cycle) {
+                if (w.since > victim.since) victim = w;
+                reason.add(w.hold.owner + " waits for " + path(w));
+            }
+            return locks.cancel(victim.hold, "deadlock: " + String.join(", ", reason));
+        }
+        return false;
+    }
+
+    /** depth first search from owner over the owners it waits for. visited maps the owners on the
+     *  current path to false and the ones done to true; path holds the waits leading to owner.
+     *  @return the waits forming a cycle, or null */
+    private static List<Wait> visit(String owner, Map<String, List<Wait>> by_owner, Map<String, Boolean> visited,
+                                    List<Wait> path) {
+        visited.put(owner, false);
+        for (Wait w : by_owner.getOrDefault(owner, List.of())) {
+            path.add(w);
+            for (String next : w.blockers) {
+                Boolean done = visited.get(next);
+                if (done == null) {
+                    List<Wait> cycle = visit(next, by_owner, visited, path);
+                    if (cycle != null) return cycle;
+                } else if (!done) {
+                    // next is on the path: the cycle starts at its wait
+                    int from = 0;
+                    while (!path.get(from).hold.owner.equals(next)) from++;
+                    return new ArrayList<>(path.subList(from, path.size()));
+                }
+            }
+            path.remove(path.size() - 1);
+        }
+        visited.put(owner, true);
+        return null;
+    }
+
+    /** what w waits for, for people */
+    public static String path(Wait w) {
+        String path = w.on_range() ? w.hold.paths[w.hold.paths.length - 1] : w.hold.paths[w.at];
+        return w.on_range() ? path + " [" + w.hold.range.start + ", " + w.hold.range.end + ")" : path;
+    }
+}
@@ -0,0 +1,12 @@
+package naming;
+
+/** A lock request that could never be granted because the requests it waits for wait for it. The
+    request that gets it is the victim: it is dropped, and the locks its client already holds stay held.
+ */
+public class DeadlockException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    public DeadlockException(String message) {
+        super(message);
+    }
+}
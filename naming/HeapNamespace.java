@@ -0,0 +1,87 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** The namespace as a tree of Address objects on the java heap, optionally backed by a mapped
+    NamespaceImage. Handles are the Address nodes themselves. There is a single heap tree per process,
+    rooted at Address.start.
+ */
+public class HeapNamespace implements Namespace {
+    @Override
+    public Object root() {
+        return Address.start;
+    }
+
+    @Override
+    public Object child(Object dir, String name) {
+        return ((Address) dir).child(name);
+    }
+
+    @Override
+    public Object insert(Object dir, String name, boolean is_dir, StorageInfo si) {
+        return ((Address) dir).insert(name, is_dir, StorageTable.intern(si));
+    }
+
+    @Override
+    public void unlink(Object dir, String name) {
+        ((Address) dir).remove(name);
+    }
+
+    @Override
+    public List<Object> children(Object dir) {
+        return new ArrayList<>(((Address) dir).children_view());
+    }
+
+    @Override
+    public List<String> list(Object dir) {
+        return ((Address) dir).list_under_dir();
+    }
+
+    @Override
+    public String name(Object node) {
+        return ((Address) node).get_name();
+    }
+
+    @Override
+    public boolean is_dir(Object node) {
+        return ((Address) node).get_is_dir();
+    }
+
+    @Override
+    public StorageInfo server(Object node) {
+        return ((Address) node).get_serverInfo();
+    }
+
+    @Override
+    public void set_server(Object node, StorageInfo si) {
+        ((Address) node).set_server(StorageTable.intern(si));
+    }
+
+    @Override
+    public List<StorageInfo> replicas(Object node) {
+        return ((Address) node).get_replica_servers();
+    }
+
+    @Override
+    public void set_replicas(Object node, List<StorageInfo> replicas) {
+        int[] ids = new int[replicas.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = StorageTable.intern(replicas.get(i));
+        ((Address) node).set_replicas(ids.length == 0 ? null : ids);
+    }
+
+    @Override
+    public boolean inc_access(Object node, int multiple) {
+        return ((Address) node).incAccessTime(multiple);
+    }
+
+    @Override
+    public void reset_access(Object node) {
+        ((Address) node).resetAccess();
+    }
+
+    @Override
+    public void attach(NamespaceImage image) {
+        Address.attach(image);
+    }
+}
@@ -0,0 +1,85 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.function.Consumer;
+
+/** Hashed timer wheel that expires the leases of lock holds.
+
+    <p>
+    The wheel is a ring of slots, one per tick. A hold is put in the slot of the tick its deadline falls
+    in, so scheduling is O(1) whatever the number of leases, and a single reaper thread visits one slot
+    per tick. Renewing a lease only moves its deadline: the hold stays in its old slot, and when the
+    reaper finds it there with a deadline still ahead it schedules it again. Deadlines further than one
+    turn of the wheel work the same way. Holds released in the meantime are dropped when their slot
+    comes around.
+
+    <p>
+    The reaper thread is only started by the first schedule(), so a server whose locks all come
+    without a lease never runs it.
+ */
+class LeaseWheel {
+    private static final int SLOTS = 512;
+
+    private final long tick;
+    private final long origin = System.nanoTime();
+    private final ArrayList<LockManager.Hold>[] slots;
+    /** ticks the reaper has finished; a hold is never scheduled at or before it. Guarded by this */
+    private long reaped = 0;
+    private final Consumer<LockManager.Hold> expire;
+    /** started by the first hold scheduled. Guarded by this */
+    private Thread reaper;
+
+    /** @param tick_ms length of a tick, which is also how late a lease may expire
+     *  @param expire called by the reaper thread with every hold whose deadline passed */
+    LeaseWheel(long tick_ms, Consumer<LockManager.Hold> expire) {
+        this.tick = tick_ms * 1_000_000L;
+        this.expire = expire;
+        slots = new_slots(SLOTS);
+        for (int i = 0; i < SLOTS; i++) slots[i] = new ArrayList<>();
+    }
+
+    /** an array of n slots, all null; java cannot create an array of a generic type directly */
+    @SuppressWarnings("unchecked")
+    private static <T> ArrayList<T>[] new_slots(int n) {
+        return (ArrayList<T>[]) new ArrayList<?>[n];
+    }
+
+    /** put the hold in the slot of its deadline */
+    synchronized void schedule(LockManager.Hold hold) {
+        if (reaper == null) {
+            reaper = new Thread(this::reap, "lease-reaper");
+            reaper.setDaemon(true);
+            reaper.start();
+        }
+        long at = Math.max((hold.deadline - origin) / tick + 1, reaped + 1);
+        slots[(int) (at & (SLOTS - 1))].add(hold);
+    }
+
+    private void reap() {
+        while (true) {
+            long next = origin + (reaped + 1) * tick;
+            long wait = next - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    Thread.sleep(wait / 1_000_000L, (int) (wait % 1_000_000L));
+                } catch (InterruptedException e) {
+                    return;
+                }
+                continue;
+            }
+            ArrayList<LockManager.Hold> due;
+            synchronized (this) {
+                reaped++;
+                ArrayList<LockManager.Hold> slot = slots[(int) (reaped & (SLOTS - 1))];
+                due = new ArrayList<>(slot);
+                slot.clear();
+            }
+            long now = System.nanoTime();
+            for (LockManager.Hold hold : due) {
+                if (hold.released) continue;
+                if (hold.deadline - now > 0) schedule(hold);
+                else expire.accept(hold);
+            }
+        }
+    }
+}
@@ -0,0 +1,475 @@
+package naming;
+
+import jsonhelper.MetricsReturn;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** The locks of the namespace nodes, keyed by namespace handle. A handle is never reused for another
+    node (see Namespace), so an entry or hold left on a removed node never locks the node that replaces it.
+
+    <p>
+    An entry only exists while somebody holds or waits for its lock: acquire() pins the entry, creating
+    it if needed, and release() unpins it and drops it once nobody uses it, so short lived files do not
+    leave locks behind. Entries are spread over striped segments, each a plain HashMap guarded by its
+    own monitor, so pinning nodes of unrelated paths does not contend.
+
+    <p>
+    Every granted request is recorded as a Hold: the exact nodes it locked and their modes, under an
+    opaque handle. Releasing a hold unlocks that list directly, without resolving any path. Holds are
+    also indexed by their target node, so an unlock by path finds the hold it ends.
+
+    <p>
+    A hold may be granted for a lease only: unless it is renewed in time, the LeaseWheel takes it back
+    and unlocks it as if its client had, so a client that dies cannot keep its locks forever.
+
+    <p>
+    lock() takes the nodes of a request one after the other in the order given, without a thread
+    waiting in between, and registers the hold once everything is granted. While it waits, the hold
+    is listed as waiting: the DeadlockDetector looks for owners waiting for each other among those
+    and withdraws one of the requests of a cycle.
+
+    <p>
+    The lock a hold has on its target can be upgraded from shared to exclusive and back without
+    releasing it; the hold cannot be unlocked or expire while that is in progress.
+ */
+public class LockManager {
+    private static final int SEGMENTS = 64;
+    /** prefix of the owner of a request that names none, followed by the connection it came over; see
+     *  NamingServer.owner_of() */
+    public static final String CONNECTION = "connection ";
+
+    private static class Entry {
+        final RWLock lock = new RWLock();
+        /** holders and waiters of the lock */
+        int pins;
+        /** holds whose target is this node, null if none */
+        LinkedHashSet<Hold> targeted;
+        /** byte-range locks of the file, null until a range is first locked */
+        RangeLock ranges;
+    }
+
+    /** the locks granted to one request, released together; waiting for them until lock() completes */
+    public static class Hold {
+        final long id;
+        /** nodes locked, in locking order, and the mode each of them was locked in */
+        final Object[] nodes;
+        final int[] modes;
+        /** path of each node, for diagnostics */
+        final String[] paths;
+        /** who the locks are for: requests of one owner are made one at a time by a client that does not
+         *  release anything while it waits. A request that names no owner is its own, unless the
+         *  caller derived one for it */
+        final String owner;
+        /** what an unlock by path matches: the target node the hold is indexed under, and a description
+         *  of the request, equal for requests that locked the same nodes the same way. The kind changes
+         *  with upgrade() and downgrade(), under the monitor of the target's segment */
+        final Object target;
+        volatile String kind;
+        /** range of the target locked, null if the request locked the whole node */
+        final RangeLock.Range range;
+        /** length of the lease in nanoseconds, 0 if the hold does not expire */
+        final long lease;
+        /** System.nanoTime() after which the hold expires, moved forward by renew() */
+        volatile long deadline;
+        /** set once the hold is taken out of the table */
+        volatile boolean released;
+        /** set while the hold is upgraded or downgraded; it cannot be taken meanwhile */
+        boolean converting;
+        /** while lock() waits: the step waited for, nodes.length for the range, its future and since
+         *  when (System.nanoTime()); guarded by this */
+        int at;
+        CompletableFuture<Void> waiting;
+        long since;
+        final CompletableFuture<Hold> granted = new CompletableFuture<>();
+
+        Hold(long id, Object[] nodes, int[] modes, String[] paths, Object target, String kind,
+             RangeLock.Range range, long lease, String owner) {
+            this.id = id;
+            this.nodes = nodes;
+            this.modes = modes;
+            this.paths = paths;
+            this.target = target;
+            this.kind = kind;
+            this.range = range;
+            this.lease = lease;
+            this.owner = owner != null ? owner : "#" + handle();
+        }
+
+        /** the opaque handle a client gives back to release the hold */
+        public String handle() {
+            return Long.toHexString(id);
+        }
+    }
+
+    private final HashMap<Object, Entry>[] segments;
+    private final ConcurrentHashMap<Long, Hold> holds = new ConcurrentHashMap<>();
+    /** holds that lock() is still waiting for */
+    private final ConcurrentHashMap<Long, Hold> waiting = new ConcurrentHashMap<>();
+    private final AtomicLong next_hold = new AtomicLong();
+    private final AtomicLong live = new AtomicLong();
+    private final AtomicLong created = new AtomicLong();
+    private final AtomicLong reclaimed = new AtomicLong();
+    private final AtomicLong expired = new AtomicLong();
+    /** granularity of lease expiry */
+    private static final long LEASE_TICK_MS = 100;
+    private final LeaseWheel leases = new LeaseWheel(LEASE_TICK_MS, this::expire);
+    private final AtomicLong deadlocks = new AtomicLong();
+    /** how long a request waits before the detector looks at it */
+    private static final long DETECT_MS = 1000;
+    private final DeadlockDetector detector;
+
+    public LockManager() {
+        segments = new_segments(SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) segments[i] = new HashMap<>();
+        detector = new DeadlockDetector(this, DETECT_MS);
+    }
+
+    /** an array of n segments, all null; java cannot create an array of a generic type directly */
+    @SuppressWarnings("unchecked")
+    private static <K, V> HashMap<K, V>[] new_segments(int n) {
+        return (HashMap<K, V>[]) new HashMap<?, ?>[n];
+    }
+
+    private HashMap<Object, Entry> segment(Object node) {
+        int h = node.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    /** the lock of node, kept alive until the matching release(node) */
+    public RWLock acquire(Object node) {
+        HashMap<Object, Entry> segment = segment(node);
+        synchronized (segment) {
+            Entry entry = segment.get(node);
+            if (entry == null) {
+                entry = new Entry();
+                segment.put(node, entry);
+                live.incrementAndGet();
+                created.incrementAndGet();
+            }
+            entry.pins++;
+            return entry.lock;
+        }
+    }
+
+    /** the lock of node if somebody acquired it, without pinning it; null otherwise */
+    public RWLock get(Object node) {
+        HashMap<Object, Entry> segment = segment(node);
+        synchronized (segment) {
+            Entry entry = segment.get(node);
+            return entry == null ? null : entry.lock;
+        }
+    }
+
+    /** the byte-range locks of node, which the caller keeps pinned */
+    public RangeLock ranges(Object node) {
+        HashMap<Object, Entry> segment = segment(node);
+        synchronized (segment) {
+            Entry entry = segment.get(node);
+            if (entry.ranges == null) entry.ranges = new RangeLock();
+            return entry.ranges;
+        }
+    }
+
+    /** unpin the lock of node, reclaiming the entry when it was the last pin */
+    public void release(Object node) {
+        HashMap<Object, Entry> segment = segment(node);
+        synchronized (segment) {
+            Entry entry = segment.get(node);
+            if (entry == null) return;
+            if (--entry.pins == 0) {
+                segment.remove(node);
+                live.decrementAndGet();
+                reclaimed.incrementAndGet();
+            }
+        }
+    }
+
+    /** lock the nodes in the given modes one after the other, then the range of target if any, and
+     *  record them as one hold. Callers pass nodes in the global order, ancestors first, which is what
+     *  keeps requests from deadlocking each other. The future completes with the hold once everything
+     *  is granted, or fails with a DeadlockException if the request was withdrawn to break a deadlock;
+     *  nothing stays locked then.
+     *  @param paths path of each node, for diagnostics
+     *  @param target the node an unlock by path names, and the node of the range
+     *  @param kind what an unlock by path must match besides the target
+     *  @param range the range of the target to lock as well, or null
+     *  @param lease_ms how long the hold lasts once granted unless renewed, 0 or less for as long as it
+     *         is not unlocked
+     *  @param owner who the locks are for, or null */
+    public CompletableFuture<Hold> lock(Object[] nodes, int[] modes, String[] paths, Object target, String kind,
+                                        RangeLock.Range range, long lease_ms, String owner) {
+        Hold hold = new Hold(next_hold.incrementAndGet(), nodes, modes, paths, target, kind, range,
+                Math.max(lease_ms, 0) * 1_000_000L, owner);
+        step(hold, 0);
+        return hold.granted;
+    }
+
+    /** lock the nodes of hold from the i-th one on, then its range; when one is not free, continue
+     *  from the release that grants it */
+    private void step(Hold hold, int i) {
+        for (; i <= hold.nodes.length; i++) {
+            CompletableFuture<Void> locked;
+            if (i < hold.nodes.length) locked = acquire(hold.nodes[i]).lockAsync(hold.modes[i]);
+            else if (hold.range != null) locked = ranges(hold.target).lockAsync(hold.range);
+            else break;
+            if (!locked.isDone()) {
+                synchronized (hold) {
+                    hold.at = i;
+                    hold.waiting = locked;
+                    hold.since = System.nanoTime();
+                }
+                waiting.put(hold.id, hold);
+                int next = i + 1;
+                locked.thenRun(() -> step(hold, next));
+                return;
+            }
+        }
+        waiting.remove(hold.id);
+        hold.deadline = System.nanoTime() + hold.lease;
+        holds.put(hold.id, hold);
+        HashMap<Object, Entry> segment = segment(hold.target);
+        synchronized (segment) {
+            Entry entry = segment.get(hold.target);
+            if (entry.targeted == null) entry.targeted = new LinkedHashSet<>();
+            entry.targeted.add(hold);
+        }
+        if (hold.lease > 0) leases.schedule(hold);
+        hold.granted.complete(hold);
+    }
+
+    /** withdraw a request lock() is waiting for and unlock what it was granted so far; returns false if
+     *  the step it waits for was granted meanwhile */
+    boolean cancel(Hold hold, String reason) {
+        int at;
+        CompletableFuture<Void> locked;
+        synchronized (hold) {
+            at = hold.at;
+            locked = hold.waiting;
+        }
+        // a step granted already is not in the queue any more
+        boolean withdrawn = at < hold.nodes.length ? get(hold.nodes[at]).cancel(locked)
+                : ranges(hold.target).cancel(locked);
+        if (!withdrawn) return false;
+        waiting.remove(hold.id);
+        // pinned by the withdrawn step but not locked
+        if (at < hold.nodes.length) release(hold.nodes[at]);
+        for (int i = Math.min(at, hold.nodes.length) - 1; i >= 0; i--) {
+            get(hold.nodes[i]).unlock(hold.modes[i]);
+            release(hold.nodes[i]);
+        }
+        deadlocks.incrementAndGet();
+        hold.granted.completeExceptionally(new DeadlockException(reason));
+        return true;
+    }
+
+    /** the holds granted, and the requests lock() is waiting for, for the DeadlockDetector */
+    Collection<Hold> granted() {
+        return holds.values();
+    }
+
+    Collection<Hold> waiting() {
+        return waiting.values();
+    }
+
+    /** the hold with the given handle, or null if there is none */
+    public Hold find(String handle) {
+        try {
+            return holds.get(Long.parseUnsignedLong(handle, 16));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** a hold on target of the given kind, or null if there is none */
+    public Hold find(Object target, String kind) {
+        HashMap<Object, Entry> segment = segment(target);
+        synchronized (segment) {
+            return find(segment.get(target), kind);
+        }
+    }
+
+    /** a hold on target of the given kind, or null; the caller holds the monitor of the target's segment */
+    private static Hold find(Entry entry, String kind) {
+        if (entry == null || entry.targeted == null) return null;
+        for (Hold hold : entry.targeted) {
+            if (hold.kind.equals(kind) && !hold.converting) return hold;
+        }
+        return null;
+    }
+
+    /** remove the hold with the given handle, or return null if there is none */
+    public Hold take(String handle) {
+        Hold hold = find(handle);
+        return hold == null ? null : take(hold);
+    }
+
+    /** remove hold from the table, or return null if somebody else already did */
+    private Hold take(Hold hold) {
+        HashMap<Object, Entry> segment = segment(hold.target);
+        // every take removes under the target's segment, so a hold is only ever taken once
+        synchronized (segment) {
+            if (hold.converting || holds.remove(hold.id) == null) return null;
+            segment.get(hold.target).targeted.remove(hold);
+            hold.released = true;
+        }
+        return hold;
+    }
+
+    /** remove a hold on target of the given kind, or return null if there is none. Holds of the same
+     *  target and kind locked the same nodes the same way, so any of them will do */
+    public Hold take(Object target, String kind) {
+        HashMap<Object, Entry> segment = segment(target);
+        synchronized (segment) {
+            Hold found = find(segment.get(target), kind);
+            if (found == null) return null;
+            segment.get(target).targeted.remove(found);
+            holds.remove(found.id);
+            found.released = true;
+            return found;
+        }
+    }
+
+    /** extend the lease of the hold with the given handle by its length from now; returns the hold, or
+     *  null if there is none, which includes a hold whose lease already expired */
+    public Hold renew(String handle) {
+        Hold hold = find(handle);
+        if (hold == null) return null;
+        synchronized (segment(hold.target)) {
+            return renew(hold);
+        }
+    }
+
+    /** renew() a hold on target of the given kind */
+    public Hold renew(Object target, String kind) {
+        HashMap<Object, Entry> segment = segment(target);
+        synchronized (segment) {
+            return renew(find(segment.get(target), kind));
+        }
+    }
+
+    /** the caller holds the monitor of the target's segment, which orders renewals and expiry */
+    private static Hold renew(Hold hold) {
+        if (hold == null || hold.released) return null;
+        // the reaper reschedules the hold when it meets it in its old slot
+        if (hold.lease > 0) hold.deadline = System.nanoTime() + hold.lease;
+        return hold;
+    }
+
+    /** turn the shared lock hold has on its target into an exclusive one, described as kind from
+     *  then on. The future completes with the hold once the upgrade is granted, with null if the hold
+     *  is gone or does not lock its target shared, and fails with a DeadlockException if another
+     *  holder of the lock is upgrading it; the hold keeps its shared lock then */
+    public CompletableFuture<Hold> upgrade(Hold hold, String kind) {
+        if (!convert(hold, RWLock.S)) return CompletableFuture.completedFuture(null);
+        // the wait is not counted against the lease
+        return get(hold.target).upgradeAsync().handle((v, failure) -> {
+            converted(hold, failure == null ? RWLock.X : RWLock.S, failure == null ? kind : hold.kind);
+            if (failure != null) throw failure instanceof CompletionException
+                    ? (CompletionException) failure : new CompletionException(failure);
+            return hold;
+        });
+    }
+
+    /** turn the exclusive lock hold has on its target into a shared one, described as kind from then
+     *  on; returns the hold, or null if it is gone or does not lock its target exclusive */
+    public Hold downgrade(Hold hold, String kind) {
+        if (!convert(hold, RWLock.X)) return null;
+        get(hold.target).downgrade();
+        converted(hold, RWLock.S, kind);
+        return hold;
+    }
+
+    /** mark hold as converting if it holds its target, and nothing else than its target, in mode */
+    private boolean convert(Hold hold, int mode) {
+        int last = hold.nodes.length - 1;
+        synchronized (segment(hold.target)) {
+            if (hold.released || hold.converting || hold.range != null) return false;
+            if (hold.nodes[last] != hold.target || hold.modes[last] != mode) return false;
+            hold.converting = true;
+            return true;
+        }
+    }
+
+    private void converted(Hold hold, int mode, String kind) {
+        synchronized (segment(hold.target)) {
+            hold.modes[hold.nodes.length - 1] = mode;
+            hold.kind = kind;
+            hold.converting = false;
+            if (hold.lease > 0) hold.deadline = System.nanoTime() + hold.lease;
+        }
+    }
+
+    /** called by the lease wheel once the deadline of hold passed */
+    private void expire(Hold hold) {
+        HashMap<Object, Entry> segment = segment(hold.target);
+        synchronized (segment) {
+            if (hold.released) return;
+            if (hold.deadline - System.nanoTime() > 0 || hold.converting) {
+                // renewed at the last moment, or busy upgrading
+                leases.schedule(hold);
+                return;
+            }
+            holds.remove(hold.id);
+            segment.get(hold.target).targeted.remove(hold);
+            hold.released = true;
+        }
+        expired.incrementAndGet();
+        unlock(hold);
+    }
+
+    /** unlock and unpin every node of a hold taken out of the table, the target first */
+    public void unlock(Hold hold) {
+        if (hold.range != null) ranges(hold.target).unlock(hold.range);
+        for (int i = hold.nodes.length - 1; i >= 0; i--) {
+            get(hold.nodes[i]).unlock(hold.modes[i]);
+            release(hold.nodes[i]);
+        }
+    }
+
+    /** number of requests holding locks */
+    public long held() {
+        return holds.size();
+    }
+
+    /** number of requests withdrawn to break a deadlock */
+    public long deadlocks() {
+        return deadlocks.get();
+    }
+
+    /** the requests waiting and who they wait for */
+    public DeadlockDetector detector() {
+        return detector;
+    }
+
+    /** number of holds taken back because their lease ran out */
+    public long expired_leases() {
+        return expired.get();
+    }
+
+    /** number of entries currently in the table */
+    public long live_entries() {
+        return live.get();
+    }
+
+    /** number of entries ever created */
+    public long created_entries() {
+        return created.get();
+    }
+
+    /** number of idle entries dropped */
+    public long reclaimed_entries() {
+        return reclaimed.get();
+    }
+
+    /** the counters above, as reported by /metrics */
+    public MetricsReturn.Locks metrics() {
+        return new MetricsReturn.Locks(live_entries(), created_entries(), reclaimed_entries(), held(),
+                expired_leases(), deadlocks());
+    }
+}
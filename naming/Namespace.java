@@ -0,0 +1,133 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/** Storage backend of the namespace tree.
+
+    <p>
+    Nodes are referred to by opaque handles that only the backend that returned them understands.
+    A handle stays equal (equals and hashCode) to itself for as long as its node is in the tree, and
+    never equals a handle of a node added after it was removed, so handles can key the lock table.
+    The backend only provides per node primitives; walking paths, creating and removing entries are
+    written once here on top of them.
+ */
+public interface Namespace {
+    /** handle of the root directory */
+    Object root();
+
+    /** handle of the child called name of the directory dir, or null if there is none */
+    Object child(Object dir, String name);
+
+    /** the child called name of dir, adding it with the given type and host if it does not exist yet;
+     *  null if dir was removed from the tree meanwhile and the backend cannot add under it */
+    Object insert(Object dir, String name, boolean is_dir, StorageInfo si);
+
+    /** unlink the child called name of dir together with its whole subtree, if it is there */
+    void unlink(Object dir, String name);
+
+    /** handles of the children of dir, in name order */
+    List<Object> children(Object dir);
+
+    String name(Object node);
+
+    boolean is_dir(Object node);
+
+    /** the storage server hosting the file */
+    StorageInfo server(Object node);
+
+    void set_server(Object node, StorageInfo si);
+
+    /** storage servers holding a copy (not the host) of the file */
+    List<StorageInfo> replicas(Object node);
+
+    void set_replicas(Object node, List<StorageInfo> replicas);
+
+    /** increase the access count of the file and tell whether it went over multiple, resetting it if so */
+    boolean inc_access(Object node, int multiple);
+
+    void reset_access(Object node);
+
+    /** replace the content of the tree by the image; called once at start up before any request */
+    void attach(NamespaceImage image);
+
+    /** resolve the path in a single walk from the root.
+     *  @return the chain of handles from the root (index 0) to the target, or null if a component is missing */
+    default Object[] resolve(String path){
+        String[] parts = eliminate_spaces(path);
+        Object[] chain = new Object[parts.length + 1];
+        chain[0] = root();
+        for (int i = 0; i < parts.length; i++){
+            chain[i + 1] = child(chain[i], parts[i]);
+            if (chain[i + 1] == null) return null;
+        }
+        return chain;
+    }
+
+    /** the last node of a resolved chain */
+    static Object leaf(Object[] chain){
+        return chain[chain.length - 1];
+    }
+
+    /** the names of the children of dir */
+    default List<String> list(Object dir){
+        List<String> result = new ArrayList<>();
+        for (Object child : children(dir)) result.add(name(child));
+        return result;
+    }
+
+    /** return true if the last component was created under an existing directory chain, false otherwise */
+    default boolean create(String path, boolean dir, StorageInfo si){
+        Object curr = root();
+        String[] parts = eliminate_spaces(path);
+        for (int i = 0; i < parts.length; i++){
+            Object next = child(curr, parts[i]);
+            if (next == null){
+                // parent dir not exist; x create
+                if (i != parts.length - 1){
+                    return false;
+                }
+                next = insert(curr, parts[i], dir, si);
+                if (next == null) return false;
+            }else if (!is_dir(next)){
+                // parent dir is actually file, not good
+                return false;
+            }
+            curr = next;
+        }
+        return true;
+    }
+
+    /** adds the file from the scratch upon registration, with any missing parent directory */
+    default void add(String path, StorageInfo si){
+        Object curr = root();
+        String[] parts = eliminate_spaces(path);
+        for (int i = 0; i < parts.length; i++){
+            curr = insert(curr, parts[i], i != parts.length - 1, si);
+            if (curr == null) return;
+            set_server(curr, si);   //  刚加的 不一定对！！！！
+        }
+    }
+
+    /** unlink the node from the tree without contacting any storage server */
+    default void remove(String path){
+        String[] parts = eliminate_spaces(path);
+        if (parts.length == 0) return;
+        Object[] parent = resolve(path.substring(0, path.lastIndexOf(parts[parts.length - 1])));
+        if (parent != null) unlink(leaf(parent), parts[parts.length - 1]);
+    }
+
+    /** the path without empty components, as storage servers expect it */
+    static String normalize(String path){
+        return "/" + String.join("/", eliminate_spaces(path));
+    }
+
+    static String[] eliminate_spaces(String path){
+        List<String> result = new ArrayList<>();
+        String[] parts = path.split("/");
+        for (String each : parts){
+            if (!each.equals("")) result.add(each);
+        }
+        return result.toArray(new String[0]);
+    }
+}
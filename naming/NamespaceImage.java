@@ -0,0 +1,227 @@
+package naming;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/** Compact binary image of the namespace tree, read in place through FileChannel.map.
+
+    <p>
+    Layout: a fixed header, then one record per node written children first, then the table of
+    storage servers the records refer to by index. A node record is
+    <pre>
+        flags (1)  server index (4)  name length (2)  name (utf-8)  child count (4)  child offsets (8 each)
+    </pre>
+    with the children sorted by their utf-8 name so a lookup is a binary search over the offsets.
+    The file is mapped in regions of 1 GB and the writer pads so no record crosses a region, which
+    lets images larger than one MappedByteBuffer be read without copying.
+ */
+public class NamespaceImage {
+    private static final int MAGIC = 0x44465349;   // "DFSI"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 32;
+    private static final int REGION_BITS = 30;
+    private static final long REGION_SIZE = 1L << REGION_BITS;
+    private static final byte FLAG_DIR = 1;
+    /** server index of a node without a hosting server */
+    private static final int NO_SERVER = -1;
+
+    private final MappedByteBuffer[] regions;
+    private final long root;
+    /** StorageTable id of each server of the image's table */
+    private final int[] servers;
+
+    private NamespaceImage(MappedByteBuffer[] regions, long root, int[] servers) {
+        this.regions = regions;
+        this.root = root;
+        this.servers = servers;
+    }
+
+    /** Map an image written by write(). Only the header and the server table are read eagerly. */
+    public static NamespaceImage open(File file) throws IOException {
+        try (FileChannel channel = new RandomAccessFile(file, "r").getChannel()) {
+            long size = channel.size();
+            MappedByteBuffer[] regions = new MappedByteBuffer[(int) ((size + REGION_SIZE - 1) >>> REGION_BITS)];
+            for (int i = 0; i < regions.length; i++) {
+                long base = (long) i << REGION_BITS;
+                regions[i] = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(REGION_SIZE, size - base));
+            }
+            if (regions.length == 0 || regions[0].getInt(0) != MAGIC || regions[0].getInt(4) != VERSION)
+                throw new IOException(file + " is not a namespace image");
+            long root = regions[0].getLong(8);
+            long table = regions[0].getLong(16);
+            int[] servers = new int[regions[0].getInt(24)];
+            ByteBuffer region = regions[(int) (table >>> REGION_BITS)];
+            int at = (int) (table & (REGION_SIZE - 1));
+            for (int i = 0; i < servers.length; i++) {
+                byte[] ip = new byte[region.getShort(at) & 0xffff];
+                region.get(at + 2, ip);
+                at += 2 + ip.length;
+                servers[i] = StorageTable.intern(new StorageInfo(new String(ip, StandardCharsets.UTF_8),
+                        region.getInt(at), region.getInt(at + 4)));
+                at += 8;
+            }
+            return new NamespaceImage(regions, root, servers);
+        }
+    }
+
+    /** offset of the root record */
+    public long root() {
+        return root;
+    }
+
+    public boolean is_dir(long node) {
+        return (region(node).get(index(node)) & FLAG_DIR) != 0;
+    }
+
+    /** StorageTable id of the server hosting the node */
+    public int server_id(long node) {
+        int i = region(node).getInt(index(node) + 1);
+        return i == NO_SERVER ? StorageTable.NONE : servers[i];
+    }
+
+    public String name(long node) {
+        return new String(name_bytes(node), StandardCharsets.UTF_8);
+    }
+
+    public byte[] name_bytes(long node) {
+        ByteBuffer region = region(node);
+        int at = index(node);
+        byte[] name = new byte[region.getShort(at + 5) & 0xffff];
+        region.get(at + 7, name);
+        return name;
+    }
+
+    public int child_count(long node) {
+        ByteBuffer region = region(node);
+        int at = index(node);
+        return region.getInt(at + 7 + (region.getShort(at + 5) & 0xffff));
+    }
+
+    /** offset of the i-th child in name order */
+    public long child(long node, int i) {
+        ByteBuffer region = region(node);
+        int at = index(node);
+        return region.getLong(at + 11 + (region.getShort(at + 5) & 0xffff) + 8 * i);
+    }
+
+    /** offset of the child called key (utf-8), or -1. Binary search comparing bytes in the mapped file */
+    public long find_child(long node, byte[] key) {
+        int low = 0;
+        int high = child_count(node) - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long candidate = child(node, mid);
+            int cmp = compare_name(candidate, key);
+            if (cmp < 0) low = mid + 1;
+            else if (cmp > 0) high = mid - 1;
+            else return candidate;
+        }
+        return -1;
+    }
+
+    private int compare_name(long node, byte[] key) {
+        ByteBuffer region = region(node);
+        int at = index(node);
+        int length = region.getShort(at + 5) & 0xffff;
+        for (int i = 0; i < length && i < key.length; i++) {
+            int cmp = (region.get(at + 7 + i) & 0xff) - (key[i] & 0xff);
+            if (cmp != 0) return cmp;
+        }
+        return length - key.length;
+    }
+
+    private ByteBuffer region(long offset) {
+        return regions[(int) (offset >>> REGION_BITS)];
+    }
+
+    private static int index(long offset) {
+        return (int) (offset & (REGION_SIZE - 1));
+    }
+
+    /** Write the whole tree of the namespace to file and sync it. The caller renames it into place. */
+    public static void write(File file, Namespace namespace) throws IOException {
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            Writer writer = new Writer(new DataOutputStream(new BufferedOutputStream(fos, 1 << 16)), namespace);
+            writer.out.write(new byte[HEADER_SIZE]);
+            long root_offset = writer.node(namespace.root());
+            long table = writer.servers();
+            writer.out.flush();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(root_offset).putLong(table).putInt(writer.servers.size());
+            header.flip();
+            fos.getChannel().write(header, 0);
+            fos.getFD().sync();
+        }
+    }
+
+    /** sequential writer; records are emitted children first so their offsets are known to the parent */
+    private static class Writer {
+        final DataOutputStream out;
+        final Namespace namespace;
+        long position = HEADER_SIZE;
+        final Map<StorageInfo, Integer> servers = new LinkedHashMap<>();
+
+        Writer(DataOutputStream out, Namespace namespace) {
+            this.out = out;
+            this.namespace = namespace;
+        }
+
+        /** children come from the namespace in name order, which is the order lookups rely on */
+        long node(Object node) throws IOException {
+            List<Object> children = namespace.children(node);
+            long[] offsets = new long[children.size()];
+            for (int i = 0; i < offsets.length; i++) offsets[i] = node(children.get(i));
+
+            byte[] name = namespace.name(node).getBytes(StandardCharsets.UTF_8);
+            if (name.length > 0xffff) throw new IOException("name too long for the namespace image: " + namespace.name(node));
+            long size = 11L + name.length + 8L * offsets.length;
+            align(size);
+            long at = position;
+            StorageInfo si = namespace.server(node);
+            out.writeByte(namespace.is_dir(node) ? FLAG_DIR : 0);
+            out.writeInt(si == null ? NO_SERVER : servers.computeIfAbsent(si, k -> servers.size()));
+            out.writeShort(name.length);
+            out.write(name);
+            out.writeInt(offsets.length);
+            for (long offset : offsets) out.writeLong(offset);
+            position += size;
+            return at;
+        }
+
+        long servers() throws IOException {
+            long size = 0;
+            List<byte[]> ips = new ArrayList<>();
+            for (StorageInfo si : servers.keySet()) {
+                byte[] ip = si.server_ip.getBytes(StandardCharsets.UTF_8);
+                ips.add(ip);
+                size += 10 + ip.length;
+            }
+            align(size);
+            long at = position;
+            int i = 0;
+            for (StorageInfo si : servers.keySet()) {
+                byte[] ip = ips.get(i++);
+                out.writeShort(ip.length);
+                out.write(ip);
+                out.writeInt(si.client_port);
+                out.writeInt(si.command_port);
+            }
+            position += size;
+            return at;
+        }
+
+        /** pad to the next region if the next size bytes would cross a region boundary */
+        private void align(long size) throws IOException {
+            if (size > REGION_SIZE) throw new IOException("namespace image record of " + size + " bytes");
+            long left = REGION_SIZE - (position & (REGION_SIZE - 1));
+            if (size > left) {
+                for (long i = 0; i < left; i++) out.writeByte(0);
+                position += left;
+            }
+        }
+    }
+}
@@ -0,0 +1,304 @@
+package naming;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonParseException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** Append-only operation log plus periodic snapshot images of a Namespace.
+
+    <p>
+    Every mutation is appended as one json line to the current log segment <code>log.N</code>. Appenders
+    are group committed: a single flusher thread writes everything queued since its last pass and
+    fsyncs once, so one fsync covers all the mutations that arrived while the previous one was running.
+
+    <p>
+    Once a segment holds enough records the flusher rotates to <code>log.N+1</code> and the whole tree
+    is written as a NamespaceImage to <code>image.N+1</code>, after which older segments and images are
+    removed. The image is taken while handlers keep mutating the tree, so it may already contain
+    some records of segment N+1; every record is idempotent, so replaying that segment on top of it
+    still yields the right tree.
+
+    <p>
+    On start the newest image is mapped and handed to the namespace; the heap tree reads from the
+    mapping in place, so only the directories touched by the replayed tail are copied to the heap.
+
+    <p>
+    Appenders wait for their fsync on a Condition rather than in Object.wait(): a virtual thread
+    waiting inside a monitor would pin its carrier thread for the whole fsync.
+ */
+public class NamespaceLog {
+    /** a mutation as it is written to the log and to the snapshots */
+    public static class Record {
+        public static final String CREATE_FILE = "create_file";
+        public static final String CREATE_DIRECTORY = "create_directory";
+        public static final String DELETE = "delete";
+        public static final String REGISTER = "register";
+
+        public String op;
+        public String path;
+        /** files added by a registration */
+        public String[] files;
+        /** storage server hosting the file(s), null for directories and deletions */
+        public StorageInfo si;
+
+        public Record(String op, String path, String[] files, StorageInfo si) {
+            this.op = op;
+            this.path = path;
+            this.files = files;
+            this.si = si;
+        }
+    }
+
+    /** number of records in a segment before it is rotated and a snapshot is taken */
+    private static final int SNAPSHOT_EVERY = 100000;
+    private static final String LOG_PREFIX = "log.";
+    private static final String SNAPSHOT_PREFIX = "image.";
+
+    private final File dir;
+    private final Namespace namespace;
+    private final Gson gson = new Gson();
+    /** guards pending, appended, durable and failure */
+    private final ReentrantLock lock = new ReentrantLock();
+    /** signalled when records are appended, for the flusher */
+    private final Condition appended_some = lock.newCondition();
+    /** signalled when records became durable or the log failed, for the appenders */
+    private final Condition flushed = lock.newCondition();
+    /** encoded records waiting for the flusher */
+    private List<byte[]> pending = new ArrayList<>();
+    /** sequence number of the last appended record */
+    private long appended = 0;
+    /** sequence number of the last record known to be on disk */
+    private long durable = 0;
+    /** set when a write or fsync failed; every later append fails too */
+    private IOException failure = null;
+    private FileChannel segment;
+    private long segment_number;
+    private int segment_records = 0;
+    /** snapshots are written in the background so they do not hold up the group commits */
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor();
+
+    private NamespaceLog(File dir, Namespace namespace) {
+        this.dir = dir;
+        this.namespace = namespace;
+    }
+
+    /** Rebuild the namespace from the newest snapshot and the log segments after it, then open a fresh
+        segment for appending.
+     */
+    public static NamespaceLog open(File dir, Namespace namespace) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+        NamespaceLog log = new NamespaceLog(dir, namespace);
+        log.recover();
+        Thread flusher = new Thread(log::flushLoop, "namespace-log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+        return log;
+    }
+
+    /** Append one record and return once it is durable. */
+    public void append(Record record) throws IOException {
+        await(enqueue(record));
+    }
+
+    /** Queue one record behind every record queued before it and return its sequence number, without
+     *  waiting for the disk. A caller that queues while it still holds the lock of its change gets the
+     *  records in the order of the changes, and waits for them with await() after letting go. */
+    public long enqueue(Record record) throws IOException {
+        byte[] line = (gson.toJson(record) + "\n").getBytes(StandardCharsets.UTF_8);
+        lock.lock();
+        try {
+            if (failure != null) throw failure;
+            pending.add(line);
+            appended_some.signal();
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Return once the record with sequence number seq, and every one before it, is durable. */
+    public void await(long seq) throws IOException {
+        lock.lock();
+        try {
+            try {
+                while (durable < seq && failure == null) flushed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("interrupted waiting for the namespace log");
+            }
+            if (durable < seq) throw failure;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Apply a record to the tree. Records are idempotent so a record may be applied twice. */
+    static void apply(Namespace namespace, Record r) throws IOException {
+        switch (r.op) {
+            case Record.CREATE_DIRECTORY:
+                if (namespace.resolve(r.path) == null) namespace.create(r.path, true, null);
+                break;
+            case Record.CREATE_FILE:
+                if (namespace.resolve(r.path) == null) namespace.create(r.path, false, r.si);
+                break;
+            case Record.DELETE:
+                namespace.remove(r.path);
+                break;
+            case Record.REGISTER:
+                for (String file : r.files) {
+                    if (namespace.resolve(file) == null) namespace.add(file, r.si);
+                }
+                break;
+            default:
+                throw new IOException("namespace log: unknown record " + r.op);
+        }
+    }
+
+    private void flushLoop() {
+        while (true) {
+            List<byte[]> batch;
+            long target;
+            lock.lock();
+            try {
+                while (pending.isEmpty()) {
+                    try {
+                        appended_some.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                batch = pending;
+                pending = new ArrayList<>();
+                target = appended;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+                for (int i = 0; i < buffers.length; i++) buffers[i] = ByteBuffer.wrap(batch.get(i));
+                long remaining = 0;
+                for (byte[] b : batch) remaining += b.length;
+                while (remaining > 0) remaining -= segment.write(buffers);
+                segment.force(false);
+                segment_records += batch.size();
+                if (segment_records >= SNAPSHOT_EVERY) rotate();
+            } catch (IOException e) {
+                e.printStackTrace();
+                lock.lock();
+                try {
+                    failure = e;
+                    flushed.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+                return;
+            }
+            lock.lock();
+            try {
+                durable = target;
+                flushed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /** close the current segment, open the next one and snapshot everything written before it */
+    private void rotate() throws IOException {
+        segment.close();
+        segment_number++;
+        openSegment();
+        long covered = segment_number;
+        snapshotter.execute(() -> {
+            try {
+                writeSnapshot(covered);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private void openSegment() throws IOException {
+        segment = FileChannel.open(new File(dir, LOG_PREFIX + segment_number).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        segment_records = 0;
+    }
+
+    /** write image.N through a temporary file, then drop the segments and images it supersedes */
+    private void writeSnapshot(long number) throws IOException {
+        File tmp = new File(dir, SNAPSHOT_PREFIX + number + ".tmp");
+        NamespaceImage.write(tmp, namespace);
+        Files.move(tmp.toPath(), new File(dir, SNAPSHOT_PREFIX + number).toPath(),
+                StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        // the live tree may still read from the older images; their mappings outlive the files
+        for (File f : files(SNAPSHOT_PREFIX).headMap(number).values()) f.delete();
+        for (File f : files(LOG_PREFIX).headMap(number).values()) f.delete();
+    }
+
+    private void recover() throws IOException {
+        TreeMap<Long, File> snapshots = files(SNAPSHOT_PREFIX);
+        long start = 0;
+        if (!snapshots.isEmpty()) {
+            start = snapshots.lastKey();
+            namespace.attach(NamespaceImage.open(snapshots.lastEntry().getValue()));
+        }
+        TreeMap<Long, File> segments = files(LOG_PREFIX);
+        for (File f : segments.tailMap(start).values()) replay(f);
+        // always start a new segment so a torn tail of the last one is never appended to
+        segment_number = segments.isEmpty() ? start : Math.max(start, segments.lastKey() + 1);
+        openSegment();
+    }
+
+    /** apply every complete record of the file. A torn last line left by a crash is reported and
+     *  skipped; a record that cannot be read anywhere else means the log is damaged and stops the start */
+    private void replay(File f) throws IOException {
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+            String line;
+            long number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                Record r;
+                try {
+                    r = gson.fromJson(line, Record.class);
+                } catch (JsonParseException e) {
+                    IOException torn = new IOException("namespace log: torn record at line " + number + " of " + f, e);
+                    if (reader.readLine() != null) throw torn;
+                    torn.printStackTrace();
+                    return;
+                }
+                if (r != null && r.op != null) apply(namespace, r);
+            }
+        }
+    }
+
+    /** files of the log directory named prefix + number, keyed by number */
+    private TreeMap<Long, File> files(String prefix) {
+        TreeMap<Long, File> result = new TreeMap<>();
+        File[] all = dir.listFiles();
+        if (all == null) return result;
+        for (File f : all) {
+            String name = f.getName();
+            if (!name.startsWith(prefix)) continue;
+            try {
+                result.put(Long.parseLong(name.substring(prefix.length())), f);
+            } catch (NumberFormatException e) {
+                // image.N.tmp left behind by a crash
+            }
+        }
+        return result;
+    }
+}
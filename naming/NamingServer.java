@@ -4,54 +4,97 @@ import com.google.gson.Gson;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpServer;
 import jsonhelper.*;
+import server.Admission;
+import server.PeerClient;
+import server.Skeleton;
 import java.io.*;
-import java.net.URI;
-import java.util.List;
+import java.util.*;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.Executors;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 
 public class NamingServer {
 
     private static int SERVICE_PORT;
     private static int REGISTRATION_PORT;
+    /** directory holding the namespace log and snapshots, null to keep the namespace in memory only */
+    private static String METADATA_DIR;
+    /** namespace backend, "heap" or "offheap" */
+    private static String NAMESPACE = "heap";
     /** Naming server registration interface skeleton. */
     private HttpServer registration_skeleton;
     /** Naming server service interface skeleton. */
     private HttpServer          service_skeleton;
+    /** threads of the service interface, which also finish the granted lock requests, and the requests
+     *  that may wait for one before new ones are turned away */
+    private static final int SERVICE_THREADS = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+    private static final int SERVICE_QUEUE = 1024;
+    /** pending connections of the service interface; lock requests that wait keep theirs open */
+    private static final int SERVICE_BACKLOG = 4096;
+    private static final int REGISTRATION_THREADS = 4;
+    private static final int REGISTRATION_QUEUE = 64;
+    private Admission service_admission;
+    private Admission registration_admission;
     /** Last registered storage server client interface. */
     private ServerInfo client_stub = null;
     /** Last registered storage server command interface. */
     private ServerInfo          command_stub = null;
+    /** response header of /lock carrying the handle that /unlock accepts */
+    private static final String LOCK_HANDLE = "Lock-Handle";
+    /** request header naming the client that sends a /lock or /lock_batch without an owner */
+    private static final String CLIENT_ID = "Client-Id";
+    /** response header of /lock and /renew carrying the milliseconds the lease lasts from now */
+    private static final String LOCK_LEASE = "Lock-Lease";
+    /** lease of a lock whose request does not ask for one, in milliseconds; 0, the default unless
+     *  --lease= is given, keeps locks until unlocked as clients that never renew expect */
+    private static long LEASE_MS = 0;
     /** Indicates that the skeleton has started. */
     private boolean             skeletons_started = false;
     /** Gson object which can parse json to an object. */
     protected Gson gson;
-    private List<StorageInfo> registered_storages;
-    private List<ServerInfo> registered_clients;
-    private List<ServerInfo> registered_commands;
-    /** maintain the lock for each file */
-    private ConcurrentHashMap<Address, RWLock> address_lock_table;
+    private CopyOnWriteArrayList<StorageInfo> registered_storages;
+    private CopyOnWriteArrayList<ServerInfo> registered_clients;
+    private CopyOnWriteArrayList<ServerInfo> registered_commands;
+    /** the files and directories, see Namespace */
+    private Namespace namespace;
+    /** maintain the lock for each file, keyed by namespace handle */
+    private LockManager locks;
+    /** connections to the storage servers, kept alive between commands */
+    private final PeerClient peers = new PeerClient(PEER_TIMEOUT_MS);
+    /** how long a command to a storage server may take, copies of large files included */
+    private static final int PEER_TIMEOUT_MS = 120000;
+    /** durable log of namespace mutations, null when persistence is off */
+    private NamespaceLog namespace_log;
+    /** held while a change is applied to the namespace and its record queued, see change() */
+    private final ReentrantLock changes = new ReentrantLock();
     /** Creates the naming server.
      */
     NamingServer() throws IOException
     {
         /** create registration interface server with port */
-        this.registration_skeleton = HttpServer.create(new InetSocketAddress(REGISTRATION_PORT), 0);
-        this.registration_skeleton.setExecutor(Executors.newCachedThreadPool());
+        this.registration_skeleton = Skeleton.create(new InetSocketAddress(REGISTRATION_PORT), 0);
+        this.registration_admission = new Admission("registration", REGISTRATION_THREADS, REGISTRATION_QUEUE);
+        this.registration_skeleton.setExecutor(this.registration_admission);
         /** create service interface server with port */
-        this.service_skeleton = HttpServer.create(new InetSocketAddress(SERVICE_PORT), 0);
-        this.service_skeleton.setExecutor(Executors.newCachedThreadPool());
+        this.service_skeleton = Skeleton.create(new InetSocketAddress(SERVICE_PORT), SERVICE_BACKLOG);
+        // /lock never parks a worker while it waits, so a small fixed pool serves any number of waiters.
+        // The other handlers still block on the namespace log and on the storage servers, which only
+        // virtual threads do without tying up a platform thread each
+        this.service_admission = new Admission("service", SERVICE_THREADS, SERVICE_QUEUE);
+        this.service_skeleton.setExecutor(this.service_admission);
         this.gson = new Gson();
-        this.registered_clients = new ArrayList<>();
-        this.registered_commands = new ArrayList<>();
-        registered_storages = new ArrayList<>();
-        this.address_lock_table = new ConcurrentHashMap<>();
-        this.address_lock_table.put(Address.start, new RWLock());
+        // read by every handler and only written on registration
+        this.registered_clients = new CopyOnWriteArrayList<>();
+        this.registered_commands = new CopyOnWriteArrayList<>();
+        registered_storages = new CopyOnWriteArrayList<>();
+        this.namespace = NAMESPACE.equals("offheap") ? new OffHeapNamespace() : new HeapNamespace();
+        this.locks = new LockManager();
+        // rebuild the namespace before the skeletons start serving
+        if (METADATA_DIR != null) this.namespace_log = NamespaceLog.open(new File(METADATA_DIR), this.namespace);
     }
 
     void start()
@@ -86,17 +129,23 @@ public class NamingServer {
         this.isDirectory();
         this.lock();
         this.unlock();
+        this.lock_batch();
+        this.unlock_batch();
+        this.renew();
+        this.upgrade();
+        this.downgrade();
+        this.lock_graph();
+        this.metrics();
     }
 
     private void pathCheck(){
-        this.service_skeleton.createContext("/is_valid_path", (exchange -> {
+        this.service_admission.context(this.service_skeleton, "/is_valid_path", (exchange -> {
             String respText = "";
             int returnCode = 200;
             if ("POST".equals(exchange.getRequestMethod())){
                 PathRequest pathRequest = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    pathRequest = gson.fromJson(isr, PathRequest.class);
+                    pathRequest = this.parse(exchange, PathRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange ,respText, returnCode);
                     return;
@@ -112,14 +161,13 @@ public class NamingServer {
     }
     /** Get the client stub information of the file*/
     private void getStorage(){
-        this.service_skeleton.createContext("/getstorage", (exchange -> {
+        this.service_admission.context(this.service_skeleton, "/getstorage", (exchange -> {
             String respText = "";
             int returnCode = 200;
             if ("POST".equals(exchange.getRequestMethod())){
                 PathRequest pathRequest = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    pathRequest = gson.fromJson(isr, PathRequest.class);
+                    pathRequest = this.parse(exchange, PathRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText,returnCode);
                     return;
@@ -129,28 +177,27 @@ public class NamingServer {
                     this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
                     return;
                 }
-                Address candi = new Address(file);
-                if(!candi.exist() || candi.is_Directory()){
+                Object[] chain = namespace.resolve(file);
+                if(chain == null || namespace.is_dir(Namespace.leaf(chain))){
                     this.sendExceptionReturn(exchange, "FileNotFoundException", 400);
                     return;
                 }else{
-                    ServerInfo si = new ServerInfo(candi.get_serverInfo().server_ip, candi.get_serverInfo().client_port);
-                    respText = gson.toJson(si);
-                    this.generateResponseAndClose(exchange, respText, returnCode);
+                    StorageInfo host = namespace.server(Namespace.leaf(chain));
+                    ServerInfo si = new ServerInfo(host.server_ip, host.client_port);
+                    this.sendReturn(exchange, si, returnCode);
                 }
             }
         }));
     }
     /** delete the file including its copies on different storage servers*/
     private void delete(){
-        this.service_skeleton.createContext("/delete", (exchange -> {
+        this.service_admission.context(this.service_skeleton, "/delete", (exchange -> {
             String respText = "";
             int returnCode = 200;
             if ("POST".equals(exchange.getRequestMethod())) {
                 PathRequest pathRequest = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    pathRequest = gson.fromJson(isr, PathRequest.class);
+                    pathRequest = this.parse(exchange, PathRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText, returnCode);
                     return;
@@ -164,28 +211,25 @@ public class NamingServer {
                     this.sendExceptionReturn(exchange, "IllegalStateException", 400);
                     return;
                 }
-                Address candi = new Address(each);
-                if(!candi.exist()){
+                if(namespace.resolve(each) == null){
                     this.sendExceptionReturn(exchange, "FileNotFoundException", 400);
                     return;
                 }
-                candi.delete();
+                this.delete_path(each);
                 BooleanReturn br = new BooleanReturn(true);
-                respText = gson.toJson(br);
-                this.generateResponseAndClose(exchange, respText, returnCode);
+                this.sendReturn(exchange, br, returnCode);
             }
         }));
     }
 
     private void create_directory(){
-        this.service_skeleton.createContext("/create_directory", (exchange -> {
+        this.service_admission.context(this.service_skeleton, "/create_directory", (exchange -> {
             String respText = "";
             int returnCode = 200;
             if ("POST".equals(exchange.getRequestMethod())){
                 PathRequest pathRequest = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    pathRequest = gson.fromJson(isr, PathRequest.class);
+                    pathRequest = this.parse(exchange, PathRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange ,respText, returnCode);
                     return;
@@ -195,37 +239,33 @@ public class NamingServer {
                     this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
                     return;
                 }
-                Address candi = new Address(file);
                 BooleanReturn br;
 
-                // given name already exist or not + check whether is dir
+                // given name already exist or not, file or dir alike
                 if (file.equals("/")){
                     br = new BooleanReturn(false);
-                } else if (candi.exist() && !candi.is_Directory()){
-                    br = new BooleanReturn(false);
-                } else if (candi.exist() && candi.is_Directory()){
-                    br = new BooleanReturn(false);
-                } else if (candi.create_directory()){
+                } else if (this.change(() -> namespace.resolve(file) == null && namespace.create(file, true, null)
+                        ? new NamespaceLog.Record(NamespaceLog.Record.CREATE_DIRECTORY, file, null, null) : null)){
                     br = new BooleanReturn(true);
+                } else if (namespace.resolve(file) != null){
+                    br = new BooleanReturn(false);
                 }else{
                     this.sendExceptionReturn(exchange, "FileNotFoundException", 400);
                     return;
                 }
-                respText = gson.toJson(br);
-                this.generateResponseAndClose(exchange, respText, returnCode);
+                this.sendReturn(exchange, br, returnCode);
             }
         }));
     }
 
     private void create_file(){
-        this.service_skeleton.createContext("/create_file", (exchange -> {
+        this.service_admission.context(this.service_skeleton, "/create_file", (exchange -> {
             String respText = "";
             int returnCode = 200;
             if ("POST".equals(exchange.getRequestMethod())){
                 PathRequest pathRequest = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    pathRequest = gson.fromJson(isr, PathRequest.class);
+                    pathRequest = this.parse(exchange, PathRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText, returnCode);
                     return;
@@ -235,49 +275,41 @@ public class NamingServer {
                     this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
                     return;
                 }
-                Address candi = new Address(file);
                 BooleanReturn br;
+                StorageInfo host = this.storage_of(command_stub);
 
                 // given name already exist or not
                 if (file.equals("/")){
                     br = new BooleanReturn(false);
-                } else if (candi.exist() && !candi.is_Directory()){
-                    br = new BooleanReturn(false);
-                } else if (candi.exist() && candi.is_Directory()){
-                    br = new BooleanReturn(false);
-                }else if (candi.create_file()){     // if file created successfully
+                }else if (this.change(() -> namespace.resolve(file) == null && namespace.create(file, false, host)
+                        ? new NamespaceLog.Record(NamespaceLog.Record.CREATE_FILE, file, null, host) : null)){
                     br = new BooleanReturn(true);
-                    PathRequest pr = new PathRequest(candi.toString());
-                    HttpClient client = HttpClient.newHttpClient();
-                    HttpRequest request = HttpRequest.newBuilder()
-                            .uri(URI.create("http://127.0.0.1:" + command_stub.server_port + "/storage_create"))
-                            .setHeader("Content-Type", "application/json")
-                            .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(pr)))
-                            .build();
+                    PathRequest pr = new PathRequest(file);
                     try{
-                        HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
+                        PeerClient.Response response = getResponse("127.0.0.1", command_stub.server_port,
+                                "/storage_create", pr);
                     }catch(InterruptedException e){
                         e.printStackTrace();
                     }
+                }else if (namespace.resolve(file) != null){
+                    br = new BooleanReturn(false);
                 }else{
                     this.sendExceptionReturn(exchange, "FileNotFoundException", 400);
                     return;
                 }
-                respText = gson.toJson(br);
-                this.generateResponseAndClose(exchange, respText, returnCode);
+                this.sendReturn(exchange, br, returnCode);
             }
         }));
     }
     /** list all the files under one directory */
     private void list(){
-        this.service_skeleton.createContext("/list", (exchange -> {
+        this.service_admission.context(this.service_skeleton, "/list", (exchange -> {
             String respText = "";
             int returnCode = 200;
             if ("POST".equals(exchange.getRequestMethod())){
                 PathRequest pathRequest = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    pathRequest = gson.fromJson(isr, PathRequest.class);
+                    pathRequest = this.parse(exchange, PathRequest.class);
                 } catch (Exception e) {
                     respText = "Error during parse JSON object!\n";
                     returnCode = 400;
@@ -289,15 +321,14 @@ public class NamingServer {
                     this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
                     return;
                 }
-                Address candi = new Address(file);
-                if (!candi.exist() || !candi.is_Directory()){
+                Object[] chain = namespace.resolve(file);
+                if (chain == null || !namespace.is_dir(Namespace.leaf(chain))){
                     this.sendExceptionReturn(exchange, "FileNotFoundException", 400);
                     return;
                 }
-                List<String> result = candi.list_under_dir();
+                List<String> result = namespace.list(Namespace.leaf(chain));
                 FilesReturn fr = new FilesReturn(result.toArray(new String[0]));
-                respText = gson.toJson(fr);
-                this.generateResponseAndClose(exchange, respText, returnCode);
+                this.sendReturn(exchange, fr, returnCode);
                 return;
 
             }
@@ -305,14 +336,13 @@ public class NamingServer {
     }
 
     private void isDirectory(){
-        this.service_skeleton.createContext("/is_directory", (exchange -> {
+        this.service_admission.context(this.service_skeleton, "/is_directory", (exchange -> {
             String respText = "";
             int returnCode = 200;
             if ("POST".equals(exchange.getRequestMethod())){
                 PathRequest pr = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    pr = gson.fromJson(isr, PathRequest.class);
+                    pr = this.parse(exchange, PathRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText, returnCode);
                     return;
@@ -322,29 +352,27 @@ public class NamingServer {
                     this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
                     return;
                 }
-                Address candi = new Address(file);
-                if (!candi.exist()){
+                Object[] chain = namespace.resolve(file);
+                if (chain == null){
                     this.sendExceptionReturn(exchange, "FileNotFoundException", 400);
                     return;
                 }
-                BooleanReturn br = new BooleanReturn(candi.is_Directory());
-                respText = gson.toJson(br);
-                this.generateResponseAndClose(exchange, respText, returnCode);
+                BooleanReturn br = new BooleanReturn(namespace.is_dir(Namespace.leaf(chain)));
+                this.sendReturn(exchange, br, returnCode);
                 return;
             }
         }));
     }
 
     private void register() {
-        this.registration_skeleton.createContext("/register", (exchange -> {
+        this.registration_admission.context(this.registration_skeleton, "/register", (exchange -> {
             String respText = "";
             int returnCode = 200;
             if ("POST".equals(exchange.getRequestMethod())) {
                 // parse request json
                 RegisterRequest registerRequest = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    registerRequest = gson.fromJson(isr, RegisterRequest.class);
+                    registerRequest = this.parse(exchange, RegisterRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText, returnCode);
                     return;
@@ -353,145 +381,648 @@ public class NamingServer {
                 // Set the stubs for the newly-registered server and check for dup
                 ServerInfo client_stub = new ServerInfo(registerRequest.storage_ip, registerRequest.client_port);
                 this.client_stub = client_stub;
-                if (registered_clients.contains(client_stub)){
+                if (!registered_clients.addIfAbsent(client_stub)){
                     this.sendExceptionReturn(exchange,"IllegalStateException", 400);
                     return;
-                }else{
-                    registered_clients.add(client_stub);
                 }
                 ServerInfo command_stub = new ServerInfo(registerRequest.storage_ip, registerRequest.command_port);
                 this.command_stub = command_stub;
-                if (registered_commands.contains(this.command_stub)){
+                if (!registered_commands.addIfAbsent(this.command_stub)){
                     this.sendExceptionReturn(exchange, "IllegalStateException", 400);
                     return;
-                }else{
-                    registered_commands.add(this.command_stub);
                 }
                 StorageInfo curr_storage = new StorageInfo(registerRequest.storage_ip, registerRequest.client_port,
                         registerRequest.command_port);
-                if (!registered_storages.contains(curr_storage))
-                    registered_storages.add(curr_storage);
+                registered_storages.addIfAbsent(curr_storage);
 
                 // prepare for the to-be deletedFiles
                 ArrayList<String> to_be_deleted_files = new ArrayList<String>();
+                ArrayList<String> added_files = new ArrayList<String>();
                 // 遍历json request里面的files们然后加到list里面
                 for (String file : registerRequest.files) {
                     if (file.equals("") || file.charAt(0) != '/' || file.contains(":")){
                         this.sendExceptionReturn(exchange,"IllegalStateException", 400);
                         return;
                     }
-                    if (file.equals("/")) continue;
-                    Address filePath = new Address(file);
-                    if (filePath.exist()) to_be_deleted_files.add(filePath.toString());
-                    else{
-                        filePath.add(curr_storage);
-                        // 为什么不能在这里 filePath.set_server_info是因为
-                        // 你在add的过程中new了 所以这里不能直接set
-                        // 虽然candi和加到tree里面最终的那个是一样的path
-                        // 但是最终的那个是在扫children的时候new出来的所以这俩是不一样的obj！
-                    }
                 }
+                String[] files = registerRequest.files;
+                this.change(() -> {
+                    for (String file : files) {
+                        if (file.equals("/")) continue;
+                        Object[] chain = namespace.resolve(file);
+                        if (chain != null){
+                            // a file this server already hosts is known from the log of a previous run
+                            Object known = Namespace.leaf(chain);
+                            if (namespace.is_dir(known) || !curr_storage.equals(namespace.server(known)))
+                                to_be_deleted_files.add(file);
+                        }
+                        else{
+                            namespace.add(file, curr_storage);
+                            added_files.add(file);
+                        }
+                    }
+                    return added_files.isEmpty() ? null : new NamespaceLog.Record(NamespaceLog.Record.REGISTER, null,
+                            added_files.toArray(new String[0]), curr_storage);
+                });
                 FilesReturn filesReturn = new FilesReturn(to_be_deleted_files.toArray(new String[0]));
-                respText = gson.toJson(filesReturn);
-                returnCode = 200;
+                this.sendReturn(exchange, filesReturn, 200);
             }
             else {
                 respText = "The REST method should be POST for <register>!\n";
                 returnCode = 400;
+                this.generateResponseAndClose(exchange, respText, returnCode);
             }
-            this.generateResponseAndClose(exchange, respText, returnCode);
         }));
     }
 
     private void lock() {
-        this.service_skeleton.createContext("/lock", (exchange -> {
+        this.service_admission.context(this.service_skeleton, "/lock", (exchange -> {
             String respText = "";
             int returnCode = 200;
             if ("POST".equals(exchange.getRequestMethod())) {
                 LockRequest lr = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    lr = gson.fromJson(isr, LockRequest.class);
+                    lr = this.parse(exchange, LockRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText, returnCode);
                     return;
                 }
                 boolean exclusive = lr.exclusive;
                 String path = lr.path;
-                Address candi = new Address(path);
                 if (path.equals("")){
                     this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
                     return;
                 }
-                if (!candi.exist()){
+                // resolved once; the root is chain[0] so it is locked together with the rest of the path
+                Object[] chain = namespace.resolve(path);
+                if (chain == null){
                     this.sendExceptionReturn(exchange, "FileNotFoundException", 400);
                     return;
                 }
+                // answered once the whole chain is granted; no thread waits meanwhile
+                String target = Namespace.normalize(path);
+                int[] modes = modes_along_the_path(chain, exclusive);
+                long lease = lease_of(lr.lease);
+                Object leaf = Namespace.leaf(chain);
+                RangeLock.Range range = null;
+                if (lr.length != 0){
+                    // a byte range of a file: the file itself only takes the intention mode, the range
+                    // lock keeps writers of disjoint ranges apart from each other
+                    range = this.range_of(lr, leaf);
+                    if (range == null){
+                        this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
+                        return;
+                    }
+                    modes[modes.length - 1] = exclusive ? RWLock.IX : RWLock.IS;
+                }
+                RangeLock.Range locked_range = range;
+                locks.lock(chain, modes, paths_along_the_path(path), leaf, kind_of(lr), range, lease,
+                        owner_of(exchange, lr.owner))
+                        .whenCompleteAsync((hold, failure) -> {
+                    try{
+                        if (failure != null){
+                            // withdrawn to break a deadlock, nothing is locked
+                            this.sendExceptionReturn(exchange, "DeadlockException", reason_of(failure), 400);
+                            return;
+                        }
+                        // reading a range does not count towards replication: a copy taken while other
+                        // ranges are written would be stale
+                        if (locked_range == null || exclusive) this.after_locked(target, leaf, exclusive);
+                        this.send_hold(exchange, hold.handle(), lease);
+                    }catch(IOException e){
+                        e.printStackTrace();
+                    }
+                }, this.service_admission);
+                return;
+            }
+        }));
+    }
+
+    /** lock several paths at once; answered with a single handle once all of them are granted */
+    private void lock_batch() {
+        this.service_admission.context(this.service_skeleton, "/lock_batch", (exchange -> {
+            String respText = "";
+            int returnCode = 200;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                LockBatchRequest lbr = null;
+                try {
+                    lbr = this.parse(exchange, LockBatchRequest.class);
+                } catch (Exception e) {
+                    this.sendNotPostRequestReturn(exchange, respText, returnCode);
+                    return;
+                }
+                if (lbr == null || lbr.locks == null || lbr.locks.length == 0){
+                    this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
+                    return;
+                }
+                Batch batch;
                 try{
-                    if (path.equals("/") && exclusive){
-                        address_lock_table.get(Address.start).lockExclusive();
-                    }else{
-                        address_lock_table.get(Address.start).lockShared();
+                    batch = this.plan_batch(lbr.locks);
+                }catch(FileNotFoundException e){
+                    this.sendExceptionReturn(exchange, "FileNotFoundException", 400);
+                    return;
+                }catch(IllegalArgumentException e){
+                    this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
+                    return;
+                }
+                long lease = lease_of(lbr.lease);
+                locks.lock(batch.nodes, batch.modes, batch.paths, batch.nodes[batch.nodes.length - 1], batch.kind,
+                        null, lease, owner_of(exchange, lbr.owner)).whenCompleteAsync((hold, failure) -> {
+                    try{
+                        if (failure != null){
+                            this.sendExceptionReturn(exchange, "DeadlockException", reason_of(failure), 400);
+                            return;
+                        }
+                        for (Map.Entry<String, Boolean> each : batch.exclusive.entrySet()){
+                            this.after_locked(each.getKey(), batch.targets.get(each.getKey()), each.getValue());
+                        }
+                        this.send_hold(exchange, hold.handle(), lease);
+                    }catch(IOException e){
+                        e.printStackTrace();
                     }
-                }catch(InterruptedException e){
-                    e.printStackTrace();
+                }, this.service_admission);
+                return;
+            }
+        }));
+    }
+
+    private void unlock_batch() {
+        this.service_admission.context(this.service_skeleton, "/unlock_batch", (exchange -> {
+            String respText = "";
+            int returnCode = 200;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                LockBatchRequest lbr = null;
+                try {
+                    lbr = this.parse(exchange, LockBatchRequest.class);
+                } catch (Exception e) {
+                    this.sendNotPostRequestReturn(exchange, respText, returnCode);
+                    return;
+                }
+                LockManager.Hold hold = null;
+                if (lbr != null && lbr.handle != null){
+                    hold = locks.take(lbr.handle);
+                }else if (lbr != null && lbr.locks != null && lbr.locks.length > 0){
+                    try{
+                        Batch batch = this.plan_batch(lbr.locks);
+                        hold = locks.take(batch.nodes[batch.nodes.length - 1], batch.kind);
+                    }catch(FileNotFoundException | IllegalArgumentException e){
+                        // reported below like any batch that is not locked
+                    }
+                }
+                if (hold == null){
+                    this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
+                    return;
                 }
-                Address.lock_along_the_path(path, exclusive, this.address_lock_table, registered_storages);
+                locks.unlock(hold);
                 this.generateResponseAndClose(exchange, respText, returnCode);
                 return;
             }
         }));
     }
 
-    private void unlock() {
-        this.service_skeleton.createContext("/unlock", (exchange -> {
+    /** extend the lease of a lock taken by /lock or /lock_batch by its full length */
+    private void renew() {
+        this.service_admission.context(this.service_skeleton, "/renew", (exchange -> {
             String respText = "";
             int returnCode = 200;
             if ("POST".equals(exchange.getRequestMethod())) {
                 LockRequest lr = null;
-                ExceptionReturn er = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    lr = gson.fromJson(isr, LockRequest.class);
+                    lr = this.parse(exchange, LockRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText, returnCode);
                     return;
                 }
-                boolean exclusive = lr.exclusive;
-                String path = lr.path;
-                Address candi = new Address(path);
-                if (path.equals("")){
+                LockManager.Hold hold = null;
+                if (lr != null && lr.handle != null){
+                    hold = locks.renew(lr.handle);
+                }else if (lr != null && lr.path != null && !lr.path.equals("")){
+                    Object[] chain = namespace.resolve(lr.path);
+                    if (chain != null) hold = locks.renew(Namespace.leaf(chain), kind_of(lr));
+                }
+                if (hold == null){
+                    // never locked, unlocked, or the lease already ran out
                     this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
                     return;
                 }
-                if (!candi.exist()){
+                exchange.getResponseHeaders().set(LOCK_LEASE, Long.toString(hold.lease / 1_000_000L));
+                this.generateResponseAndClose(exchange, respText, returnCode);
+                return;
+            }
+        }));
+    }
+
+    /** turn a shared /lock into an exclusive one without letting another writer in between */
+    private void upgrade() {
+        this.service_admission.context(this.service_skeleton, "/upgrade", (exchange -> {
+            String respText = "";
+            int returnCode = 200;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                LockRequest lr = null;
+                try {
+                    lr = this.parse(exchange, LockRequest.class);
+                } catch (Exception e) {
+                    this.sendNotPostRequestReturn(exchange, respText, returnCode);
+                    return;
+                }
+                LockManager.Hold hold = this.find_hold(lr, false);
+                if (hold == null){
+                    this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
+                    return;
+                }
+                // answered once the other holders left, like /lock
+                locks.upgrade(hold, kind_of(true)).whenCompleteAsync((upgraded, failure) -> {
+                    try{
+                        if (failure != null){
+                            // another holder is upgrading; this one still holds the lock shared
+                            this.sendExceptionReturn(exchange, "DeadlockException", reason_of(failure), 400);
+                        }else if (upgraded == null){
+                            this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
+                        }else{
+                            this.after_locked(path_of(hold.nodes), hold.target, true);
+                            this.send_hold(exchange, hold.handle(), hold.lease / 1_000_000L);
+                        }
+                    }catch(IOException e){
+                        e.printStackTrace();
+                    }
+                }, this.service_admission);
+                return;
+            }
+        }));
+    }
+
+    /** turn an exclusive /lock into a shared one, letting the waiting readers in */
+    private void downgrade() {
+        this.service_admission.context(this.service_skeleton, "/downgrade", (exchange -> {
+            String respText = "";
+            int returnCode = 200;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                LockRequest lr = null;
+                try {
+                    lr = this.parse(exchange, LockRequest.class);
+                } catch (Exception e) {
+                    this.sendNotPostRequestReturn(exchange, respText, returnCode);
+                    return;
+                }
+                LockManager.Hold hold = this.find_hold(lr, true);
+                if (hold == null || locks.downgrade(hold, kind_of(false)) == null){
                     this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
                     return;
                 }
-                if (path.equals("/") && exclusive){
-                    address_lock_table.get(Address.start).unlockExclusive();
+                this.send_hold(exchange, hold.handle(), hold.lease / 1_000_000L);
+                return;
+            }
+        }));
+    }
+
+    /** the hold of a whole-file /lock, by handle or by path, that has the given access */
+    private LockManager.Hold find_hold(LockRequest lr, boolean exclusive){
+        if (lr == null) return null;
+        LockManager.Hold hold;
+        if (lr.handle != null){
+            hold = locks.find(lr.handle);
+        }else{
+            if (lr.path == null || lr.path.equals("")) return null;
+            Object[] chain = namespace.resolve(lr.path);
+            hold = chain == null ? null : locks.find(Namespace.leaf(chain), kind_of(exclusive));
+        }
+        // batches and byte ranges are not converted
+        return hold != null && hold.kind.equals(kind_of(exclusive)) ? hold : null;
+    }
+
+    /** the path of the last node of a chain resolved from the root */
+    private String path_of(Object[] chain){
+        StringBuilder path = new StringBuilder();
+        for (int i = 1; i < chain.length; i++) path.append('/').append(namespace.name(chain[i]));
+        return path.length() == 0 ? "/" : path.toString();
+    }
+
+    /** the lock requests waiting, who they wait for and since when, to find contending paths */
+    private void lock_graph() {
+        this.service_skeleton.createContext("/lock_graph", (exchange -> {
+            if ("GET".equals(exchange.getRequestMethod()) || "POST".equals(exchange.getRequestMethod())) {
+                long now = System.nanoTime();
+                List<LockGraphReturn.Waiter> waiters = new ArrayList<>();
+                for (DeadlockDetector.Wait w : locks.detector().waits()){
+                    String mode = w.on_range() ? (w.hold.range.exclusive ? "X" : "S") : MODE_NAMES[w.hold.modes[w.at]];
+                    waiters.add(new LockGraphReturn.Waiter(w.hold.handle(), w.hold.owner, DeadlockDetector.path(w),
+                            mode, (now - w.since) / 1_000_000L, w.blockers.toArray(new String[0])));
+                }
+                LockGraphReturn graph = new LockGraphReturn(waiters.toArray(new LockGraphReturn.Waiter[0]),
+                        locks.deadlocks());
+                this.sendReturn(exchange, graph, 200);
+            }
+        }));
+    }
+
+    /** the worker pools of both skeletons; like /lock_graph it is answered even when they are full */
+    private void metrics() {
+        this.service_skeleton.createContext("/metrics", (exchange -> {
+            MetricsReturn metrics = new MetricsReturn(new MetricsReturn.Skeleton[] {
+                    this.service_admission.metrics(), this.registration_admission.metrics()}, peers.metrics(),
+                    locks.metrics());
+            this.sendReturn(exchange, metrics, 200);
+        }));
+    }
+
+    private void unlock() {
+        this.service_admission.context(this.service_skeleton, "/unlock", (exchange -> {
+            String respText = "";
+            int returnCode = 200;
+            if ("POST".equals(exchange.getRequestMethod())) {
+                LockRequest lr = null;
+                ExceptionReturn er = null;
+                try {
+                    lr = this.parse(exchange, LockRequest.class);
+                } catch (Exception e) {
+                    this.sendNotPostRequestReturn(exchange, respText, returnCode);
+                    return;
+                }
+                LockManager.Hold hold;
+                if (lr.handle != null){
+                    // the hold records the exact locks taken, nothing to resolve
+                    hold = locks.take(lr.handle);
                 }else{
-                    address_lock_table.get(Address.start).unlockShared();
+                    String path = lr.path;
+                    if (path == null || path.equals("")){
+                        this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
+                        return;
+                    }
+                    Object[] chain = namespace.resolve(path);
+                    hold = chain == null ? null : locks.take(Namespace.leaf(chain), kind_of(lr));
+                }
+                if (hold == null){
+                    // unknown handle, or nothing locked this way on this path
+                    this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
+                    return;
                 }
-                Address.unlock_previous(path, exclusive, this.address_lock_table);
+                locks.unlock(hold);
                 this.generateResponseAndClose(exchange, respText, returnCode);
                 return;
             }
         }));
     }
 
+    /** the message of the exception a lock future failed with */
+    private static String reason_of(Throwable failure){
+        if (failure instanceof CompletionException && failure.getCause() != null) failure = failure.getCause();
+        return failure.getMessage();
+    }
+    /** names of the RWLock modes, by mode */
+    private static final String[] MODE_NAMES = {"IS", "IX", "S", "X"};
+    /** the mode a /lock of the chain target takes on chain[i]. Ancestors only take intention shared, whatever
+     *  the target mode: a shared lock on a directory must stay compatible with an exclusive lock on a
+     *  file inside it, which intention exclusive would forbid */
+    private static int mode_along_the_path(Object[] chain, int i, boolean exclusive){
+        if (i < chain.length - 1) return RWLock.IS;
+        return exclusive ? RWLock.X : RWLock.S;
+    }
+    private static int[] modes_along_the_path(Object[] chain, boolean exclusive){
+        int[] modes = new int[chain.length];
+        for (int i = 0; i < chain.length; i++) modes[i] = mode_along_the_path(chain, i, exclusive);
+        return modes;
+    }
+    /** the owner of a lock request for deadlock detection: the one it names; else the Client-Id header,
+     *  qualified by the address it came from; else the connection, which a client that keeps its
+     *  connection open sends all of its requests over */
+    private static String owner_of(HttpExchange exchange, String named){
+        if (named != null) return named;
+        InetSocketAddress remote = exchange.getRemoteAddress();
+        String client = exchange.getRequestHeaders().getFirst(CLIENT_ID);
+        if (client != null) return remote.getAddress().getHostAddress() + "/" + client;
+        return LockManager.CONNECTION + remote.getAddress().getHostAddress() + ":" + remote.getPort();
+    }
+    /** the lease a lock request gets: the one it asks for, or the server default */
+    private static long lease_of(long requested){
+        return requested > 0 ? requested : LEASE_MS;
+    }
+    /** answer a granted lock request with its handle and lease */
+    private void send_hold(HttpExchange exchange, String handle, long lease) throws IOException{
+        exchange.getResponseHeaders().set(LOCK_HANDLE, handle);
+        if (lease > 0) exchange.getResponseHeaders().set(LOCK_LEASE, Long.toString(lease));
+        this.generateResponseAndClose(exchange, "", 200);
+    }
+    /** what an unlock by path of a single /lock must match: the access, and the range if any */
+    private static String kind_of(LockRequest lr){
+        return lr.length == 0 ? kind_of(lr.exclusive) : kind_of(lr.exclusive) + " " + lr.offset + "+" + lr.length;
+    }
+    private static String kind_of(boolean exclusive){
+        return exclusive ? "exclusive" : "shared";
+    }
+    /** the byte range a /lock asks for, or null if it is not a valid range of the file node */
+    private RangeLock.Range range_of(LockRequest lr, Object node){
+        if (lr.offset < 0 || lr.length <= 0 || lr.offset > Long.MAX_VALUE - lr.length) return null;
+        if (namespace.is_dir(node)) return null;
+        return new RangeLock.Range(lr.offset, lr.offset + lr.length, lr.exclusive);
+    }
+    /** the path of every node a /lock of path locks, from the root down */
+    private static String[] paths_along_the_path(String path){
+        String[] parts = Namespace.eliminate_spaces(path);
+        String[] paths = new String[parts.length + 1];
+        paths[0] = "/";
+        for (int i = 0; i < parts.length; i++) paths[i + 1] = (i == 0 ? "" : paths[i]) + "/" + parts[i];
+        return paths;
+    }
+    /** the nodes a /lock_batch request locks, in the global order, each in the strongest mode any of
+     *  its requests needs */
+    private static class Batch {
+        Object[] nodes;
+        int[] modes;
+        String[] paths;
+        /** equal for batches that lock the same nodes the same way */
+        String kind;
+        /** normalized path of each requested target, whether it was asked exclusive, and its node */
+        final Map<String, Boolean> exclusive = new LinkedHashMap<>();
+        final Map<String, Object> targets = new HashMap<>();
+    }
+    /** merge the chains of the requests: a directory shared by several paths is locked once */
+    private Batch plan_batch(LockRequest[] requests) throws FileNotFoundException{
+        // ordered by path components, so ancestors come before their descendants as in a single /lock
+        TreeMap<List<String>, Object> nodes = new TreeMap<>(NamingServer::compare_paths);
+        Map<Object, Integer> modes = new HashMap<>();
+        Batch batch = new Batch();
+        for (LockRequest lr : requests){
+            // byte ranges are only locked one file at a time, through /lock
+            if (lr == null || lr.path == null || lr.path.equals("") || lr.length != 0){
+                throw new IllegalArgumentException();
+            }
+            Object[] chain = namespace.resolve(lr.path);
+            if (chain == null) throw new FileNotFoundException(lr.path);
+            List<String> parts = Arrays.asList(Namespace.eliminate_spaces(lr.path));
+            for (int i = 0; i < chain.length; i++){
+                nodes.put(parts.subList(0, i), chain[i]);
+                modes.merge(chain[i], mode_along_the_path(chain, i, lr.exclusive), RWLock::cover);
+            }
+            String target = Namespace.normalize(lr.path);
+            batch.exclusive.merge(target, lr.exclusive, Boolean::logicalOr);
+            batch.targets.put(target, Namespace.leaf(chain));
+        }
+        batch.nodes = nodes.values().toArray();
+        batch.modes = new int[batch.nodes.length];
+        batch.paths = new String[batch.nodes.length];
+        StringBuilder kind = new StringBuilder("batch");
+        int i = 0;
+        for (Map.Entry<List<String>, Object> each : nodes.entrySet()){
+            batch.modes[i] = modes.get(each.getValue());
+            batch.paths[i] = "/" + String.join("/", each.getKey());
+            kind.append(' ').append(batch.modes[i]).append(' ').append(batch.paths[i++]);
+        }
+        batch.kind = kind.toString();
+        return batch;
+    }
+
+    private static int compare_paths(List<String> a, List<String> b){
+        for (int i = 0; i < a.size() && i < b.size(); i++){
+            int cmp = a.get(i).compareTo(b.get(i));
+            if (cmp != 0) return cmp;
+        }
+        return a.size() - b.size();
+    }
+    /** replication bookkeeping of a request that just locked target, the node at path */
+    private void after_locked(String path, Object target, boolean exclusive){
+        if (namespace.is_dir(target)) return;
+        if (exclusive){
+            // a write invalidates every copy
+            namespace.reset_access(target);
+            deleteReplicas(path, target);
+        }else if (namespace.inc_access(target, 20)){
+            // if file and being accessed larger than 20 times
+            replicate(path, target);
+        }
+    }
+    /** Let every storage server except the server hosting the file has the copy of the file */
+    private void replicate(String path, Object candi){
+        // 因为你身为storage server你不能用自己的command stub给自己的client stub发lol
+        StorageInfo host = namespace.server(candi);
+        List<StorageInfo> replicas = namespace.replicas(candi);
+        for (StorageInfo si : registered_storages){
+            if (!replicas.contains(si) && !si.equals(host)){
+                replicas.add(si);
+                namespace.set_replicas(candi, replicas);
+                CopyRequest cr = new CopyRequest(path, host.server_ip, host.client_port);
+                try{
+                    PeerClient.Response response = getResponse(si.server_ip, si.command_port, "/storage_copy", cr);
+                }catch(IOException e){
+                    System.out.println(e.getMessage());
+                }catch(InterruptedException e){
+                    System.out.println(e.getMessage());
+                }
+            }
+        }
+    }
+    /** delete every copy that other storage server is hosting*/
+    private void deleteReplicas(String path, Object candi){
+        List<StorageInfo> replicas = namespace.replicas(candi);
+        if (replicas.isEmpty()) return;
+        List<StorageInfo> failed = new ArrayList<>();
+        PathRequest pr = new PathRequest(path);
+        for (StorageInfo si : replicas){
+            try{
+                PeerClient.Response response = getResponse(si.server_ip, si.command_port, "/storage_delete", pr);
+                continue;
+            }catch(IOException e){
+                e.printStackTrace();
+            }catch(InterruptedException e){
+                e.printStackTrace();
+            }
+            // keep the replicas that could not be invalidated
+            failed.add(si);
+        }
+        namespace.set_replicas(candi, failed);
+    }
+    /** delete the file totally from the namespace including copies
+     *  @return true if the node was removed from the tree */
+    private boolean delete_path(String path) throws IOException {
+        String[] parts = Namespace.eliminate_spaces(path);
+        Object[] chain = namespace.resolve(path);
+        if (parts.length == 0 || chain == null) return false;
+        path = Namespace.normalize(path);
+        Object parent = chain[chain.length - 2];
+        Object each = Namespace.leaf(chain);
+        if (!namespace.is_dir(each)){
+            deleteReplicas(path, each);
+            send_delete(namespace.server(each), path);
+            return this.unlink(parent, parts[parts.length - 1], path);
+        }
+        for (Object child : namespace.children(each)){
+            if (!namespace.is_dir(child)){
+                deleteReplicas(path, child);
+                send_delete(namespace.server(child), path);
+                deleteReplicas(path, each);
+                send_delete(namespace.server(each), path);
+                return this.unlink(parent, parts[parts.length - 1], path);
+            }
+        }
+        return false;
+    }
+
+    private void send_delete(StorageInfo host, String path){
+        try{
+            PeerClient.Response response = getResponse(host.server_ip, host.command_port, "/storage_delete",
+                    new PathRequest(path));
+        }catch(IOException e){
+            e.printStackTrace();
+        }catch(InterruptedException e){
+            e.printStackTrace();
+        }
+    }
+
+    private PeerClient.Response getResponse(String ip, int port, String api, Object obj) throws IOException,
+            InterruptedException{
+        return peers.post(ip, port, api, gson.toJson(obj));
+    }
+
+    /** unlink the child called name of parent, whose path is path, and log the deletion */
+    private boolean unlink(Object parent, String name, String path) throws IOException {
+        return this.change(() -> {
+            namespace.unlink(parent, name);
+            return new NamespaceLog.Record(NamespaceLog.Record.DELETE, path, null, null);
+        });
+    }
+
+    /** Apply a change to the namespace and queue its record in the log as one step, then wait until the
+     *  record is durable before the change is acknowledged. change returns the record of what it did, or
+     *  null when it changed nothing. One lock covers the change and the queuing of every change, so the
+     *  log replays them in the order they were applied; the fsync is waited for after it is let go, so
+     *  concurrent changes still share one. */
+    private boolean change(Supplier<NamespaceLog.Record> change) throws IOException {
+        long seq = 0;
+        this.changes.lock();
+        try {
+            NamespaceLog.Record record = change.get();
+            if (record == null) return false;
+            if (this.namespace_log != null) seq = this.namespace_log.enqueue(record);
+        } finally {
+            this.changes.unlock();
+        }
+        if (this.namespace_log != null) this.namespace_log.await(seq);
+        return true;
+    }
+
+    /** the registered storage server whose command interface is stub */
+    private StorageInfo storage_of(ServerInfo stub) {
+        if (stub == null) return null;
+        for (StorageInfo si : registered_storages){
+            if (si.server_ip.equals(stub.server_ip) && si.command_port == stub.server_port) return si;
+        }
+        return null;
+    }
+
     protected void sendBooleanReturn(HttpExchange exchange, boolean success, int returnCode) throws IOException
     {
         BooleanReturn booleanReturn = new BooleanReturn(success);
-        String respText = gson.toJson(booleanReturn);
-        this.generateResponseAndClose(exchange, respText, returnCode);
+        this.sendReturn(exchange, booleanReturn, returnCode);
     }
 
     protected void sendExceptionReturn(HttpExchange exchange, String exception_type, int returnCode)
             throws IOException{
-        ExceptionReturn er = new ExceptionReturn(exception_type, "");
-        String respText = gson.toJson(er);
-        this.generateResponseAndClose(exchange, respText, returnCode);
+        this.sendExceptionReturn(exchange, exception_type, "", returnCode);
+    }
+
+    protected void sendExceptionReturn(HttpExchange exchange, String exception_type, String exception_info,
+                                       int returnCode) throws IOException{
+        ExceptionReturn er = new ExceptionReturn(exception_type, exception_info);
+        this.sendReturn(exchange, er, returnCode);
     }
 
     protected void sendNotPostRequestReturn(HttpExchange exchange, String respText, int returnCode)
@@ -501,24 +1032,57 @@ public class NamingServer {
         this.generateResponseAndClose(exchange, respText, returnCode);
     }
 
+    /** read the request body as a message of type, in binary if its Content-Type says so and in json otherwise */
+    private <T> T parse(HttpExchange exchange, Class<T> type) throws IOException {
+        if (Binary.wanted(exchange.getRequestHeaders().getFirst("Content-Type")))
+            return Binary.decode(exchange.getRequestBody(),
+                    Binary.length(exchange.getRequestHeaders().getFirst("Content-Length")), type, null);
+        InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
+        return gson.fromJson(isr, type);
+    }
+
+    /** answer with message, in binary if the client accepts it and in json otherwise */
+    private void sendReturn(HttpExchange exchange, Object message, int returnCode) throws IOException {
+        if (Binary.wanted(exchange.getRequestHeaders().getFirst("Accept"))){
+            exchange.getResponseHeaders().set("Content-Type", Binary.CONTENT_TYPE);
+            this.generateResponseAndClose(exchange, Binary.encode(message), returnCode);
+            return;
+        }
+        this.generateResponseAndClose(exchange, gson.toJson(message), returnCode);
+    }
+
     /**
      * call this function when you want to write to response and close the connection.
      */
     private void generateResponseAndClose(HttpExchange exchange, String respText, int returnCode) throws IOException {
-        exchange.sendResponseHeaders(returnCode, respText.getBytes().length);
+        this.generateResponseAndClose(exchange, respText.getBytes(), returnCode);
+    }
+
+    private void generateResponseAndClose(HttpExchange exchange, byte[] resp, int returnCode) throws IOException {
+        exchange.sendResponseHeaders(returnCode, resp.length);
         OutputStream output = exchange.getResponseBody();
-        output.write(respText.getBytes());
+        output.write(resp);
         output.flush();
         exchange.close();
     }
 
     public static void main(String[] args) throws FileNotFoundException {
-        if (args.length != 2){
-            System.out.println("Proper Usage is: java naming.NamingServer port port");
+        // options come first as --name=value, then the positional arguments
+        List<String> positional = new ArrayList<>();
+        for (String arg : args){
+            if (arg.startsWith("--namespace=")) NAMESPACE = arg.substring("--namespace=".length());
+            else if (arg.startsWith("--lease=")) LEASE_MS = Long.parseLong(arg.substring("--lease=".length()));
+            else if (!Admission.configure(arg) && !Skeleton.configure(arg)) positional.add(arg);
+        }
+        if ((positional.size() != 2 && positional.size() != 3)
+                || !(NAMESPACE.equals("heap") || NAMESPACE.equals("offheap"))){
+            System.out.println("Proper Usage is: java naming.NamingServer [--namespace=heap|offheap] [--lease=ms] "
+                    + Admission.usage("service", "registration") + " " + Skeleton.usage() + " port port [metadataDir]");
             System.exit(0);
         }
-        SERVICE_PORT = Integer.parseInt(args[0]);
-        REGISTRATION_PORT = Integer.parseInt(args[1]);
+        SERVICE_PORT = Integer.parseInt(positional.get(0));
+        REGISTRATION_PORT = Integer.parseInt(positional.get(1));
+        if (positional.size() == 3) METADATA_DIR = positional.get(2);
         PrintStream debug_file = new PrintStream(new FileOutputStream("debug_storage.txt", true));
         System.setOut(debug_file);
         try{
@@ -0,0 +1,509 @@
+package naming;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
+
+/** The namespace kept outside the java heap, for trees too large to afford one object per node.
+
+    <p>
+    Every node is a fixed size record in a direct buffer, addressed by an int id:
+    <pre>
+        parent (4)  name length (2)  flags (1)  pad (1)  name ref (8)  server (4)  access count (4)
+        first child (4)  next sibling (4)  previous sibling (4)  hash (4)  epoch (4)
+    </pre>
+    The children of a directory are a doubly linked list through these records. Lookups go through a
+    single open addressing table, also off heap, from (parent id, name) to id; the table uses linear
+    probing with backward shift deletion, so removals leave no tombstones. Names are appended to an
+    arena of direct buffers and are not reclaimed when their node is removed; a snapshot and restart
+    compacts them. Ids of removed nodes are reused.
+
+    <p>
+    Handles are Longs holding the id in the low half and the epoch of its record in the high half. The
+    epoch goes up each time the id is freed, so the handle of a removed node never equals the handle of
+    the node that reuses its id, and LockManager, which keys its entries and holds by handle, cannot
+    confuse the two. Every use of a handle checks its epoch against the record: a stale handle is a node
+    that is no longer there, which queries answer as such (no children, no name, no server) and
+    mutations leave alone, rather than reading or writing the node that reuses its id. insert() under
+    a stale directory returns null. Mutations take the write side of a StampedLock. Point queries read
+    optimistically without locking and only fall back to the read side if a mutation ran meanwhile;
+    listings take the read side. Only replica sets, which few files have, stay on the heap. The direct
+    memory used is bounded by -XX:MaxDirectMemorySize.
+ */
+public class OffHeapNamespace implements Namespace {
+    private static final int RECORD = 44;
+    private static final int PARENT = 0;
+    private static final int NAME_LENGTH = 4;
+    private static final int FLAGS = 6;
+    private static final int NAME = 8;
+    private static final int SERVER = 16;
+    private static final int ACCESS = 20;
+    private static final int FIRST = 24;
+    private static final int NEXT = 28;
+    private static final int PREV = 32;
+    private static final int HASH = 36;
+    /** times the id was freed, the high half of the handle */
+    private static final int EPOCH = 40;
+    private static final byte FLAG_DIR = 1;
+    /** id standing for no node */
+    private static final int NIL = -1;
+    private static final int ROOT = 0;
+    /** records per node buffer */
+    private static final int NODE_BITS = 20;
+    /** bytes per name buffer */
+    private static final int NAME_BITS = 24;
+    /** slots per hash table buffer, a slot being (hash, id) */
+    private static final int TABLE_BITS = 24;
+    private static final long INITIAL_CAPACITY = 1L << 16;
+
+    private ByteBuffer[] nodes;
+    /** ids below next_id have been handed out at least once */
+    private int next_id;
+    /** head of the removed ids, chained through NEXT */
+    private int free;
+    private ByteBuffer[] names;
+    private long name_end;
+    private ByteBuffer[] table;
+    /** number of slots of the table, a power of two */
+    private long capacity;
+    private long entries;
+    /** replica server ids of the files that have any, by handle */
+    private final ConcurrentHashMap<Long, int[]> replicas = new ConcurrentHashMap<>();
+    private final StampedLock lock = new StampedLock();
+
+    public OffHeapNamespace() {
+        reset();
+    }
+
+    /** drop every node but a fresh root; the caller holds the write lock or is the constructor */
+    private void reset() {
+        nodes = new ByteBuffer[0];
+        next_id = 0;
+        free = NIL;
+        names = new ByteBuffer[0];
+        name_end = 0;
+        capacity = INITIAL_CAPACITY;
+        table = allocate_table(capacity);
+        entries = 0;
+        replicas.clear();
+        allocate(NIL, new byte[0], 0, true, StorageTable.NONE);
+    }
+
+    @Override
+    public Object root() {
+        // the root is never freed, its epoch stays 0
+        return (long) ROOT;
+    }
+
+    @Override
+    public Object child(Object dir, String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        return read(() -> {
+            int parent = id(dir);
+            int id = parent == NIL ? NIL : lookup(parent, key);
+            return id == NIL ? null : handle(id);
+        });
+    }
+
+    @Override
+    public Object insert(Object dir, String name, boolean is_dir, StorageInfo si) {
+        Object found = child(dir, name);
+        if (found != null) return found;
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        if (key.length > 0xffff) throw new IllegalArgumentException("name too long: " + name);
+        long stamp = lock.writeLock();
+        try {
+            int parent = id(dir);
+            if (parent == NIL) return null;
+            int id = lookup(parent, key);
+            if (id == NIL) {
+                int h = hash(parent, key);
+                id = allocate(parent, key, h, is_dir, StorageTable.intern(si));
+                table_put(h, id);
+            }
+            return handle(id);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public void unlink(Object dir, String name) {
+        byte[] key = name.getBytes(StandardCharsets.UTF_8);
+        long stamp = lock.writeLock();
+        try {
+            int parent = id(dir);
+            if (parent == NIL) return;
+            int id = lookup(parent, key);
+            if (id == NIL) return;
+            int prev = get(id, PREV);
+            int next = get(id, NEXT);
+            if (prev == NIL) put(parent, FIRST, next);
+            else put(prev, NEXT, next);
+            if (next != NIL) put(next, PREV, prev);
+            release(id);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public List<Object> children(Object dir) {
+        long stamp = lock.readLock();
+        try {
+            List<Integer> ids = new ArrayList<>();
+            int parent = id(dir);
+            if (parent == NIL) return new ArrayList<>();
+            for (int c = get(parent, FIRST); c != NIL; c = get(c, NEXT)) ids.add(c);
+            Map<Integer, byte[]> keys = new HashMap<>();
+            for (int c : ids) keys.put(c, name_bytes(c));
+            ids.sort((a, b) -> Arrays.compareUnsigned(keys.get(a), keys.get(b)));
+            List<Object> result = new ArrayList<>(ids.size());
+            for (int c : ids) result.add(handle(c));
+            return result;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public String name(Object node) {
+        byte[] key = read(() -> {
+            int id = id(node);
+            return id == NIL ? null : name_bytes(id);
+        });
+        return key == null ? null : new String(key, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean is_dir(Object node) {
+        return read(() -> {
+            int id = id(node);
+            return id != NIL && (node(id).get(at(id) + FLAGS) & FLAG_DIR) != 0;
+        });
+    }
+
+    @Override
+    public StorageInfo server(Object node) {
+        return StorageTable.get(read(() -> {
+            int id = id(node);
+            return id == NIL ? StorageTable.NONE : get(id, SERVER);
+        }));
+    }
+
+    @Override
+    public void set_server(Object node, StorageInfo si) {
+        int server = StorageTable.intern(si);
+        long stamp = lock.writeLock();
+        try {
+            int id = id(node);
+            if (id != NIL) put(id, SERVER, server);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    @Override
+    public List<StorageInfo> replicas(Object node) {
+        List<StorageInfo> result = new ArrayList<>();
+        int[] ids = replicas.get((Long) node);
+        if (ids != null) for (int id : ids) result.add(StorageTable.get(id));
+        return result;
+    }
+
+    @Override
+    public void set_replicas(Object node, List<StorageInfo> servers) {
+        if (servers.isEmpty()) {
+            replicas.remove((Long) node);
+            return;
+        }
+        int[] ids = new int[servers.size()];
+        for (int i = 0; i < ids.length; i++) ids[i] = StorageTable.intern(servers.get(i));
+        // under the read lock, so the node cannot be released between the check and the put
+        long stamp = lock.readLock();
+        try {
+            if (id(node) != NIL) replicas.put((Long) node, ids);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public boolean inc_access(Object node, int multiple) {
+        // like the heap tree the counter is only a hint, so racing increments are tolerated
+        long stamp = lock.readLock();
+        try {
+            int id = id(node);
+            if (id == NIL) return false;
+            int count = get(id, ACCESS) + 1;
+            put(id, ACCESS, count > multiple ? 0 : count);
+            return count > multiple;
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    @Override
+    public void reset_access(Object node) {
+        long stamp = lock.readLock();
+        try {
+            int id = id(node);
+            if (id != NIL) put(id, ACCESS, 0);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** run a query without locking, and again under the read lock if a mutation interfered with it */
+    private <T> T read(Supplier<T> query) {
+        long stamp = lock.tryOptimisticRead();
+        if (stamp != 0) {
+            try {
+                T result = query.get();
+                if (lock.validate(stamp)) return result;
+            } catch (RuntimeException e) {
+                // torn state left by a concurrent mutation, e.g. an index into a table being replaced
+            }
+        }
+        stamp = lock.readLock();
+        try {
+            return query.get();
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    /** copy the whole image off heap; unlike the heap tree nothing keeps reading from the mapping */
+    @Override
+    public void attach(NamespaceImage image) {
+        long stamp = lock.writeLock();
+        try {
+            reset();
+            put(ROOT, SERVER, image.server_id(image.root()));
+            load(image, image.root(), ROOT);
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    private void load(NamespaceImage image, long from, int to) {
+        for (int i = 0, n = image.child_count(from); i < n; i++) {
+            long node = image.child(from, i);
+            byte[] key = image.name_bytes(node);
+            int h = hash(to, key);
+            int id = allocate(to, key, h, image.is_dir(node), image.server_id(node));
+            table_put(h, id);
+            if (image.is_dir(node)) load(image, node, id);
+        }
+    }
+
+    /** a new record linked at the head of its parent's children; not yet in the hash table */
+    private int allocate(int parent, byte[] key, int h, boolean dir, int server) {
+        int id;
+        if (free != NIL) {
+            id = free;
+            free = get(id, NEXT);
+        } else {
+            if (next_id == Integer.MAX_VALUE) throw new IllegalStateException("namespace is full");
+            id = next_id++;
+            if ((id >>> NODE_BITS) == nodes.length) {
+                nodes = Arrays.copyOf(nodes, nodes.length + 1);
+                nodes[nodes.length - 1] = ByteBuffer.allocateDirect(RECORD << NODE_BITS);
+            }
+        }
+        ByteBuffer b = node(id);
+        int at = at(id);
+        b.putInt(at + PARENT, parent);
+        b.putShort(at + NAME_LENGTH, (short) key.length);
+        b.put(at + FLAGS, dir ? FLAG_DIR : 0);
+        b.putLong(at + NAME, store_name(key));
+        b.putInt(at + SERVER, server);
+        b.putInt(at + ACCESS, 0);
+        b.putInt(at + FIRST, NIL);
+        b.putInt(at + PREV, NIL);
+        b.putInt(at + HASH, h);
+        int next = parent == NIL ? NIL : get(parent, FIRST);
+        b.putInt(at + NEXT, next);
+        if (next != NIL) put(next, PREV, id);
+        if (parent != NIL) put(parent, FIRST, id);
+        return id;
+    }
+
+    /** free the node and everything under it; it is already detached from its siblings */
+    private void release(int id) {
+        for (int c = get(id, FIRST); c != NIL; ) {
+            int next = get(c, NEXT);
+            release(c);
+            c = next;
+        }
+        table_remove(get(id, HASH), id);
+        replicas.remove(handle(id));
+        put(id, EPOCH, get(id, EPOCH) + 1);
+        put(id, NEXT, free);
+        free = id;
+    }
+
+    /** the handle of the node with this id, see the class comment */
+    private Long handle(int id) {
+        return ((long) get(id, EPOCH) << 32) | id;
+    }
+
+    /** the id of the node the handle was made for, or NIL if that node was removed since; the caller
+     *  holds the lock or validates its optimistic read */
+    private int id(Object node) {
+        long handle = (Long) node;
+        int id = (int) handle;
+        return get(id, EPOCH) == (int) (handle >>> 32) ? id : NIL;
+    }
+
+    private ByteBuffer node(int id) {
+        return nodes[id >>> NODE_BITS];
+    }
+
+    private static int at(int id) {
+        return (id & ((1 << NODE_BITS) - 1)) * RECORD;
+    }
+
+    private int get(int id, int field) {
+        return node(id).getInt(at(id) + field);
+    }
+
+    private void put(int id, int field, int value) {
+        node(id).putInt(at(id) + field, value);
+    }
+
+    /** append the name to the arena and return where it starts; a name never spans two buffers */
+    private long store_name(byte[] key) {
+        long size = 1L << NAME_BITS;
+        if ((name_end & (size - 1)) + key.length > size) name_end = (name_end + size) & ~(size - 1);
+        int buffer = (int) (name_end >>> NAME_BITS);
+        if (buffer == names.length) {
+            names = Arrays.copyOf(names, names.length + 1);
+            names[buffer] = ByteBuffer.allocateDirect((int) size);
+        }
+        long ref = name_end;
+        names[buffer].put((int) (ref & (size - 1)), key);
+        name_end += key.length;
+        return ref;
+    }
+
+    private byte[] name_bytes(int id) {
+        ByteBuffer b = node(id);
+        int at = at(id);
+        byte[] key = new byte[b.getShort(at + NAME_LENGTH) & 0xffff];
+        long ref = b.getLong(at + NAME);
+        if (key.length > 0) names[(int) (ref >>> NAME_BITS)].get((int) (ref & ((1L << NAME_BITS) - 1)), key);
+        return key;
+    }
+
+    private boolean name_equals(int id, byte[] key) {
+        ByteBuffer b = node(id);
+        int at = at(id);
+        if ((b.getShort(at + NAME_LENGTH) & 0xffff) != key.length) return false;
+        long ref = b.getLong(at + NAME);
+        ByteBuffer buffer = names[(int) (ref >>> NAME_BITS)];
+        int from = (int) (ref & ((1L << NAME_BITS) - 1));
+        for (int i = 0; i < key.length; i++) {
+            if (buffer.get(from + i) != key[i]) return false;
+        }
+        return true;
+    }
+
+    private static int hash(int parent, byte[] key) {
+        int h = parent * 0x9E3779B9 + Arrays.hashCode(key);
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    /** id of the child called key of parent, or NIL */
+    private int lookup(int parent, byte[] key) {
+        int h = hash(parent, key);
+        long mask = capacity - 1;
+        // bounded, because an optimistic reader may see a table that is being rewritten
+        for (long i = h & mask, n = 0; n < capacity; i = (i + 1) & mask, n++) {
+            int id = slot_id(i);
+            if (id == NIL) return NIL;
+            if (slot_hash(i) == h && get(id, PARENT) == parent && name_equals(id, key)) return id;
+        }
+        return NIL;
+    }
+
+    private static ByteBuffer[] allocate_table(long capacity) {
+        int slots = (int) Math.min(capacity, 1L << TABLE_BITS);
+        ByteBuffer[] result = new ByteBuffer[(int) (capacity / slots)];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ByteBuffer.allocateDirect(slots * 8);
+            for (int j = 0; j < slots; j++) result[i].putInt(j * 8 + 4, NIL);
+        }
+        return result;
+    }
+
+    private int slot_hash(long i) {
+        return table[(int) (i >>> TABLE_BITS)].getInt((int) (i & ((1L << TABLE_BITS) - 1)) * 8);
+    }
+
+    private int slot_id(long i) {
+        return table[(int) (i >>> TABLE_BITS)].getInt((int) (i & ((1L << TABLE_BITS) - 1)) * 8 + 4);
+    }
+
+    private void set_slot(long i, int h, int id) {
+        ByteBuffer b = table[(int) (i >>> TABLE_BITS)];
+        int at = (int) (i & ((1L << TABLE_BITS) - 1)) * 8;
+        b.putInt(at, h);
+        b.putInt(at + 4, id);
+    }
+
+    private void table_put(int h, int id) {
+        if ((entries + 1) * 2 > capacity) grow();
+        long mask = capacity - 1;
+        long i = h & mask;
+        while (slot_id(i) != NIL) i = (i + 1) & mask;
+        set_slot(i, h, id);
+        entries++;
+    }
+
+    /** double the table, keeping the load factor under one half */
+    private void grow() {
+        ByteBuffer[] old = table;
+        long old_capacity = capacity;
+        capacity *= 2;
+        table = allocate_table(capacity);
+        long mask = capacity - 1;
+        for (long j = 0; j < old_capacity; j++) {
+            ByteBuffer b = old[(int) (j >>> TABLE_BITS)];
+            int at = (int) (j & ((1L << TABLE_BITS) - 1)) * 8;
+            int id = b.getInt(at + 4);
+            if (id == NIL) continue;
+            int h = b.getInt(at);
+            long i = h & mask;
+            while (slot_id(i) != NIL) i = (i + 1) & mask;
+            set_slot(i, h, id);
+        }
+    }
+
+    /** remove the slot of id and shift back the run after it, so lookups never see a hole */
+    private void table_remove(int h, int id) {
+        long mask = capacity - 1;
+        long i = h & mask;
+        while (slot_id(i) != id) {
+            if (slot_id(i) == NIL) return;
+            i = (i + 1) & mask;
+        }
+        for (long j = (i + 1) & mask; slot_id(j) != NIL; j = (j + 1) & mask) {
+            long home = slot_hash(j) & mask;
+            // the entry at j may fill the hole at i unless its home lies cyclically in (i, j]
+            boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stays) {
+                set_slot(i, slot_hash(j), slot_id(j));
+                i = j;
+            }
+        }
+        set_slot(i, 0, NIL);
+        entries--;
+    }
+}
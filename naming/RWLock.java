@@ -1,51 +1,309 @@
 package naming;
 
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/** Multi-mode lock of a namespace node: intention shared (IS), intention exclusive (IX), shared (S)
+    and exclusive (X), with the usual compatibilities
+    <pre>
+              IS   IX   S    X
+        IS    yes  yes  yes  no
+        IX    yes  yes  no   no
+        S     yes  no   yes  no
+        X     no   no   no   no
+    </pre>
+
+    <p>
+    The holders of each mode are counted in one packed state word. As long as nobody is queued, a
+    compatible request is granted with a single compare-and-set, so the intention locks that every
+    request takes on the directories above its target cost no monitor. A request that conflicts, or
+    that arrives while somebody is queued, joins a FIFO queue and requests are granted strictly in
+    arrival order: a queued writer blocks later readers (the "A B share, C wants exclusive, D wants
+    shared, D waits for C" rule).
+
+    <p>
+    Queued threads park on their own. A release grants the longest compatible run at the head of the
+    queue (one writer, or a group of readers) and unparks exactly those threads, handing the lock over
+    directly; the others are not woken at all. The monitor only guards the queue for the time it takes
+    to add or grant a waiter, nobody waits on it.
+
+    <p>
+    lockAsync() queues a continuation instead of a thread: its future is completed by the release
+    that grants it, so a request can wait for as long as the conflict lasts without holding a thread.
+
+    <p>
+    A shared holder can upgrade to exclusive without letting go of the lock, and an exclusive holder
+    can downgrade to shared. An upgrade waits for the other holders to leave, ahead of the queue: the
+    queued requests wait for the upgrader's shared lock anyway. Two shared holders upgrading at once
+    would wait for each other forever, so the second one fails with a DeadlockException instead and
+    keeps its shared lock.
+ */
 public class RWLock {
-    private int readReqeust;
-    private int writeRequest;
-    private boolean isWriting;
-
-    public RWLock(){
-        this.readReqeust = 0;
-        this.writeRequest = 0;
-        this.isWriting = false;
-    }
-
-    public synchronized void lockShared() throws InterruptedException
-    {
-        // block when exclusive access requests exist (to ensure FCFS) or writing is ongoing
-        // Remember the example "A B currently shared access, C exclusive access request, D shared access request"
-        // then D should wait after C unlock
-        while (writeRequest > 0 || isWriting)
-            wait();
-        // increment the number of times for read
-        readReqeust++;
-    }
-
-    public synchronized void lockExclusive() throws InterruptedException
-    {
-        // increment write request
-        // Again this is for the "A B C D" example situation mentioned previously
-        // make sure D wait AFTER C !
-        writeRequest++;
-        // cannot be simultaneously locked by users requesting exclusive access if shared accesses ongoing.
-        // or when there is exclusive access (writing) going on
-        while (readReqeust > 0 || isWriting)
-            wait();
-        writeRequest--;
-        isWriting = true;
-    }
-
-    public synchronized void unlockShared()
-    {
-        readReqeust--;
-        // wake up everybody
-        notifyAll();
-    }
-
-    public synchronized void unlockExclusive()
-    {
-        isWriting = false;
-        notifyAll();
-    }
-}
\ No newline at end of file
+    public static final int IS = 0;
+    public static final int IX = 1;
+    public static final int S = 2;
+    public static final int X = 3;
+
+    /** IS, IX and S count their holders in 20 bits each of the state, in this order; X, which has a
+     *  single holder, is the bit after them. A mode whose count is full is not granted: the request
+     *  queues like a conflicting one until a holder of that mode leaves */
+    private static final int BITS = 20;
+    private static final long COUNT = (1L << BITS) - 1;
+    /** set while the queue is not empty; turns the fast path off */
+    private static final long QUEUED = 1L << (3 * BITS + 1);
+
+    private final AtomicLong state = new AtomicLong();
+    /** requests waiting for their turn, guarded by this */
+    private final ArrayDeque<Waiter> queue = new ArrayDeque<>();
+    /** the pending upgrade, granted before the queue; guarded by this */
+    private Waiter upgrader;
+
+    private static class Waiter {
+        final int mode;
+        /** parked thread of a blocking request, null for lockAsync() */
+        final Thread thread;
+        /** continuation of a lockAsync() request, null for a blocking one */
+        final CompletableFuture<Void> future;
+        /** set once the lock is handed over, before the thread is unparked */
+        volatile boolean granted;
+
+        Waiter(int mode, Thread thread, CompletableFuture<Void> future) {
+            this.mode = mode;
+            this.thread = thread;
+            this.future = future;
+        }
+    }
+
+    /** the weakest mode that grants everything both a and b grant */
+    public static int cover(int a, int b) {
+        if (a == b || b == IS) return a;
+        if (a == IS) return b;
+        // S with IX, or anything with X
+        return X;
+    }
+
+    /** whether locks in modes a and b cannot be held at the same time */
+    public static boolean conflicts(int a, int b) {
+        return !compatible(a, unit(b));
+    }
+
+    private static long unit(int mode) {
+        return 1L << (mode * BITS);
+    }
+
+    private static long holders(long s, int mode) {
+        return (s >>> (mode * BITS)) & (mode == X ? 1 : COUNT);
+    }
+
+    /** whether mode can be granted next to the current holders, with room in its count for one more */
+    private static boolean compatible(int mode, long s) {
+        switch (mode) {
+            case IS:
+                return holders(s, X) == 0 && holders(s, IS) < COUNT;
+            case IX:
+                return holders(s, S) == 0 && holders(s, X) == 0 && holders(s, IX) < COUNT;
+            case S:
+                return holders(s, IX) == 0 && holders(s, X) == 0 && holders(s, S) < COUNT;
+            default:
+                return (s & ~QUEUED) == 0;
+        }
+    }
+
+    /** the fast path: take the lock with a compare-and-set if nobody is queued and it is compatible */
+    private boolean tryLock(int mode) {
+        long s = state.get();
+        while ((s & QUEUED) == 0 && compatible(mode, s)) {
+            if (state.compareAndSet(s, s + unit(mode))) return true;
+            s = state.get();
+        }
+        return false;
+    }
+
+    private void enqueue(Waiter w) {
+        List<Waiter> granted;
+        synchronized (this) {
+            queue.add(w);
+            setQueued();
+            // the holders may all have left before the flag was set
+            granted = grant();
+        }
+        wake(granted);
+    }
+
+    /** take the lock in mode without blocking. The future is already complete if the lock was free,
+     *  otherwise it is completed by the thread of the release that grants the lock */
+    public CompletableFuture<Void> lockAsync(int mode) {
+        if (tryLock(mode)) return CompletableFuture.completedFuture(null);
+        Waiter w = new Waiter(mode, null, new CompletableFuture<>());
+        enqueue(w);
+        return w.future;
+    }
+
+    public void lock(int mode) throws InterruptedException {
+        if (tryLock(mode)) return;
+        Waiter w = new Waiter(mode, Thread.currentThread(), null);
+        enqueue(w);
+        while (!w.granted) {
+            LockSupport.park(this);
+            if (Thread.interrupted()) {
+                List<Waiter> granted = null;
+                synchronized (this) {
+                    if (!w.granted) {
+                        queue.remove(w);
+                        // the waiters behind may be grantable now
+                        granted = grant();
+                    }
+                }
+                if (w.granted) {
+                    // too late to back out, keep the lock and the interrupt
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                wake(granted);
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /** withdraw a lockAsync() request that is still queued. Returns false if it was granted already, or
+     *  the future is not a queued one; the lock is then held as usual */
+    public boolean cancel(CompletableFuture<Void> future) {
+        List<Waiter> granted;
+        synchronized (this) {
+            Waiter found = null;
+            for (Waiter w : queue) {
+                if (w.future == future) {
+                    found = w;
+                    break;
+                }
+            }
+            if (found == null) return false;
+            queue.remove(found);
+            // the waiters behind may be grantable now
+            granted = grant();
+        }
+        wake(granted);
+        return true;
+    }
+
+    /** turn a shared lock the caller holds into an exclusive one, atomically: no other exclusive holder
+     *  gets in between. The future is completed once the other holders left, or failed with a
+     *  DeadlockException if another upgrade of this lock is pending; the shared lock is kept then */
+    public CompletableFuture<Void> upgradeAsync() {
+        long s = state.get();
+        while (upgradable(s)) {
+            if (state.compareAndSet(s, s - unit(S) + unit(X))) return CompletableFuture.completedFuture(null);
+            s = state.get();
+        }
+        Waiter w = new Waiter(X, null, new CompletableFuture<>());
+        List<Waiter> granted;
+        synchronized (this) {
+            if (upgrader != null) {
+                return CompletableFuture.failedFuture(
+                        new DeadlockException("another holder of the lock is upgrading it"));
+            }
+            upgrader = w;
+            // keeps new requests off the fast path, so they cannot starve the upgrade
+            setQueued();
+            granted = grant();
+        }
+        wake(granted);
+        return w.future;
+    }
+
+    /** turn the exclusive lock the caller holds into a shared one, letting in the queued readers */
+    public void downgrade() {
+        long s = state.addAndGet(unit(S) - unit(X));
+        if ((s & QUEUED) != 0) {
+            List<Waiter> granted;
+            synchronized (this) {
+                granted = grant();
+            }
+            wake(granted);
+        }
+    }
+
+    /** whether the only holder is the single shared holder about to upgrade */
+    private static boolean upgradable(long s) {
+        return holders(s, S) == 1 && holders(s, IS) == 0 && holders(s, IX) == 0;
+    }
+
+    public void unlock(int mode) {
+        long s = state.addAndGet(-unit(mode));
+        if ((s & QUEUED) != 0) {
+            List<Waiter> granted;
+            synchronized (this) {
+                granted = grant();
+            }
+            wake(granted);
+        }
+    }
+
+    public void lockShared() throws InterruptedException {
+        lock(S);
+    }
+
+    public void lockExclusive() throws InterruptedException {
+        lock(X);
+    }
+
+    public void unlockShared() {
+        unlock(S);
+    }
+
+    public void unlockExclusive() {
+        unlock(X);
+    }
+
+    private void setQueued() {
+        long s = state.get();
+        while ((s & QUEUED) == 0 && !state.compareAndSet(s, s | QUEUED)) s = state.get();
+    }
+
+    /** grant the queue head as long as it is compatible and return the waiters granted, to be woken
+     *  once the monitor is released; the caller holds the monitor. Only releases change the state
+     *  concurrently, since the queued flag keeps new requests off the fast path */
+    private List<Waiter> grant() {
+        List<Waiter> granted = null;
+        if (upgrader != null) {
+            long s = state.get();
+            while (true) {
+                // nothing gets past a pending upgrade
+                if (!upgradable(s)) return null;
+                if (state.compareAndSet(s, s - unit(S) + unit(X))) break;
+                s = state.get();
+            }
+            upgrader.granted = true;
+            granted = new ArrayList<>();
+            granted.add(upgrader);
+            upgrader = null;
+        }
+        while (!queue.isEmpty()) {
+            Waiter head = queue.peek();
+            long s = state.get();
+            if (!compatible(head.mode, s)) break;
+            if (!state.compareAndSet(s, s + unit(head.mode))) continue;
+            queue.poll();
+            head.granted = true;
+            if (granted == null) granted = new ArrayList<>();
+            granted.add(head);
+        }
+        if (queue.isEmpty()) {
+            long s = state.get();
+            while ((s & QUEUED) != 0 && !state.compareAndSet(s, s & ~QUEUED)) s = state.get();
+        }
+        return granted;
+    }
+
+    private static void wake(List<Waiter> granted) {
+        if (granted == null) return;
+        for (Waiter w : granted) {
+            if (w.thread != null) LockSupport.unpark(w.thread);
+            else w.future.complete(null);
+        }
+    }
+}
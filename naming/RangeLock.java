@@ -0,0 +1,171 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+
+/** Byte-range locks of one file: ranges [start, end) locked shared or exclusive.
+
+    <p>
+    Shared ranges may overlap each other, an exclusive range overlaps nothing else. Conflicts are
+    found in O(log n) of the granted ranges. Exclusive ranges never overlap, so they are kept by
+    start and only the one starting last before the end of a request can reach into it. Shared
+    ranges are kept as coverage: the number of holders from each boundary up to the next, with no
+    two neighbouring boundaries carrying the same count. A request then overlaps a shared range
+    exactly when its start is covered or a boundary falls inside it.
+
+    <p>
+    Requests are served in arrival order like RWLock: a request that conflicts with a granted range,
+    or with an earlier request still waiting, waits, and a release grants every waiter that no longer
+    conflicts. Requests on disjoint ranges never wait for each other.
+
+    <p>
+    A RangeLock lives next to the RWLock of the file in LockManager; requests hold the file lock in
+    an intention mode (IX for an exclusive range, IS for a shared one), so whole-file locks exclude
+    them there.
+ */
+public class RangeLock {
+    /** a locked range */
+    public static class Range {
+        final long start;
+        final long end;
+        final boolean exclusive;
+
+        public Range(long start, long end, boolean exclusive) {
+            this.start = start;
+            this.end = end;
+            this.exclusive = exclusive;
+        }
+
+        boolean overlaps(Range other) {
+            return start < other.end && other.start < end;
+        }
+
+        /** whether the two ranges cannot be held at the same time */
+        boolean conflicts(Range other) {
+            return (exclusive || other.exclusive) && overlaps(other);
+        }
+    }
+
+    private static class Waiter {
+        final Range range;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(Range range) {
+            this.range = range;
+        }
+    }
+
+    /** granted exclusive ranges, end by start; guarded by this like the rest */
+    private final TreeMap<Long, Long> exclusive = new TreeMap<>();
+    /** holders of shared ranges from each boundary up to the next one; none before the first */
+    private final TreeMap<Long, Integer> shared = new TreeMap<>();
+    private final ArrayList<Waiter> queue = new ArrayList<>();
+
+    /** lock the range. The future is already complete if nothing was in the way, otherwise it is
+     *  completed by the thread of the release that grants the range */
+    public CompletableFuture<Void> lockAsync(Range range) {
+        synchronized (this) {
+            if (!conflicts(range, queue.size())) {
+                grant(range);
+                return CompletableFuture.completedFuture(null);
+            }
+            Waiter w = new Waiter(range);
+            queue.add(w);
+            return w.future;
+        }
+    }
+
+    public void unlock(Range range) {
+        List<Waiter> granted;
+        synchronized (this) {
+            if (range.exclusive) exclusive.remove(range.start);
+            else cover(range.start, range.end, -1);
+            granted = grantWaiting();
+        }
+        wake(granted);
+    }
+
+    /** withdraw a lockAsync() request that is still queued. Returns false if it was granted already, or
+     *  the future is not a queued one */
+    public boolean cancel(CompletableFuture<Void> future) {
+        List<Waiter> granted;
+        synchronized (this) {
+            if (!queue.removeIf(w -> w.future == future)) return false;
+            granted = grantWaiting();
+        }
+        wake(granted);
+        return true;
+    }
+
+    /** grant the queued requests that no longer conflict and return them, to be woken once the monitor
+     *  is released; the caller holds the monitor */
+    private List<Waiter> grantWaiting() {
+        List<Waiter> granted = null;
+        // a waiter that stays queued keeps the ones behind it that it conflicts with queued
+        int i = 0;
+        for (Iterator<Waiter> it = queue.iterator(); it.hasNext(); i++) {
+            Waiter w = it.next();
+            if (conflicts(w.range, i)) continue;
+            it.remove();
+            i--;
+            grant(w.range);
+            if (granted == null) granted = new ArrayList<>();
+            granted.add(w);
+        }
+        return granted;
+    }
+
+    private static void wake(List<Waiter> granted) {
+        if (granted == null) return;
+        for (Waiter w : granted) w.future.complete(null);
+    }
+
+    /** whether range conflicts with a granted range or with one of the first waiting requests */
+    private boolean conflicts(Range range, int waiting) {
+        Map.Entry<Long, Long> before = exclusive.lowerEntry(range.end);
+        if (before != null && before.getValue() > range.start) return true;
+        if (range.exclusive) {
+            Map.Entry<Long, Integer> at = shared.floorEntry(range.start);
+            if (at != null && at.getValue() > 0) return true;
+            Long next = shared.higherKey(range.start);
+            if (next != null && next < range.end) return true;
+        }
+        for (int i = 0; i < waiting; i++) {
+            if (queue.get(i).range.conflicts(range)) return true;
+        }
+        return false;
+    }
+
+    private void grant(Range range) {
+        if (range.exclusive) exclusive.put(range.start, range.end);
+        else cover(range.start, range.end, 1);
+    }
+
+    /** add delta holders to [start, end) of the shared coverage */
+    private void cover(long start, long end, int delta) {
+        boundary(start);
+        boundary(end);
+        for (Map.Entry<Long, Integer> each : shared.subMap(start, end).entrySet()) {
+            each.setValue(each.getValue() + delta);
+        }
+        // drop the boundaries that no longer change the count
+        Iterator<Map.Entry<Long, Integer>> it = shared.subMap(start, true, end, true).entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Long, Integer> each = it.next();
+            Map.Entry<Long, Integer> previous = shared.lowerEntry(each.getKey());
+            int before = previous == null ? 0 : previous.getValue();
+            if (each.getValue() == before) it.remove();
+        }
+    }
+
+    /** split the coverage at point */
+    private void boundary(long point) {
+        if (shared.containsKey(point)) return;
+        Map.Entry<Long, Integer> previous = shared.lowerEntry(point);
+        shared.put(point, previous == null ? 0 : previous.getValue());
+    }
+}
@@ -0,0 +1,34 @@
+package naming;
+
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Interns every storage server the namespace refers to as a small integer id, so that tree nodes
+    store an int instead of a StorageInfo reference. Ids are never reused; a server keeps its id for
+    the lifetime of the naming server even if it never registers again.
+ */
+public class StorageTable {
+    /** server with a given id, the id being the index */
+    private static final List<StorageInfo> servers = new CopyOnWriteArrayList<>();
+    private static final ConcurrentHashMap<StorageInfo, Integer> ids = new ConcurrentHashMap<>();
+    /** id standing for no server */
+    public static final int NONE = -1;
+
+    /** the id of si, assigning the next one if si has not been seen yet */
+    public static int intern(StorageInfo si){
+        if (si == null) return NONE;
+        Integer id = ids.get(si);
+        if (id != null) return id;
+        synchronized (servers){
+            return ids.computeIfAbsent(si, k -> {
+                servers.add(k);
+                return servers.size() - 1;
+            });
+        }
+    }
+
+    public static StorageInfo get(int id){
+        return id == NONE ? null : servers.get(id);
+    }
+}
@@ -0,0 +1,235 @@
+package server;
+
+import com.google.gson.Gson;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import jsonhelper.ExceptionReturn;
+import jsonhelper.MetricsReturn;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Bounded worker pool of one HttpServer skeleton, with admission control.
+
+    <p>
+    Handlers run on a fixed number of workers fed by a queue of fixed depth. Once both are full the
+    skeleton does not queue or spawn anything more: the exchange runs on the dispatcher thread of the
+    HttpServer instead, and the filter installed by context() answers it at once with
+    <code>503 Service Unavailable</code> and a <code>Retry-After</code> header, without calling the
+    handler. While it does, the dispatcher accepts no new connections, which pushes back on clients.
+    Contexts created directly on the server, such as /metrics, are not filtered and are still served
+    under overload.
+
+    <p>
+    Tasks that are not exchanges, like the continuation of a granted /lock, take the same pool and run
+    on the calling thread when it is full; they are never dropped.
+
+    <p>
+    With <code>--threads=virtual</code> (Java 21) there is no pool and no queue: every admitted task
+    gets a virtual thread of its own at once, from a thread-per-task executor, and a Semaphore with as
+    many permits as the platform pool has workers and queue slots bounds the tasks in flight. A task
+    that finds no permit is turned away as above. Blocking a virtual thread costs no platform thread, so
+    all admitted requests run instead of most of them waiting in the queue.
+
+    <p>
+    Every skeleton's size can be set on the command line as <code>--NAME-workers=n</code> and
+    <code>--NAME-queue=n</code>; see configure().
+ */
+public class Admission implements Executor {
+    /** seconds a rejected client is told to wait before it retries */
+    public static final int RETRY_AFTER_S = 1;
+
+    /** "platform" or "virtual" */
+    private static String threads = "platform";
+    /** sizes given on the command line, by option name without the leading dashes */
+    private static final Map<String, Integer> sizes = new HashMap<>();
+
+    /** set while an exchange that was not admitted runs on the dispatcher */
+    private static final ThreadLocal<Boolean> rejecting = new ThreadLocal<>();
+
+    private final String name;
+    /** the pool of platform threads, null in virtual thread mode */
+    private final ThreadPoolExecutor workers;
+    private final int queue_capacity;
+    /** in virtual thread mode, the executor of one thread per task and the tasks it may run at once;
+     *  both null otherwise */
+    private final ExecutorService per_task;
+    private final Semaphore permits;
+    private final int permit_count;
+    /** requests passed to their handler, and requests answered 503 */
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    /** tasks that got a worker, and the time they spent queued, in nanoseconds */
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong wait_total = new AtomicLong();
+    private final AtomicLong wait_max = new AtomicLong();
+    private final Gson gson = new Gson();
+    private final Filter filter = new Filter() {
+        @Override
+        public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+            if (rejecting.get() == null) {
+                admitted.incrementAndGet();
+                chain.doFilter(exchange);
+                return;
+            }
+            rejected.incrementAndGet();
+            String text = gson.toJson(new ExceptionReturn("OverloadException",
+                    name + " is overloaded, retry later"));
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Retry-After", Integer.toString(RETRY_AFTER_S));
+            exchange.sendResponseHeaders(503, body.length);
+            OutputStream output = exchange.getResponseBody();
+            output.write(body);
+            output.flush();
+            exchange.close();
+        }
+
+        @Override
+        public String description() {
+            return "admission control of " + name;
+        }
+    };
+
+    /** consume a command line option meant for the skeletons; returns false if arg is not one of them.
+     *  Options are <code>--threads=platform|virtual</code>, <code>--NAME-workers=n</code> and
+     *  <code>--NAME-queue=n</code> for a skeleton called NAME */
+    public static boolean configure(String arg) {
+        if (!arg.startsWith("--") || !arg.contains("=")) return false;
+        String option = arg.substring(2, arg.indexOf('='));
+        String value = arg.substring(arg.indexOf('=') + 1);
+        if (option.equals("threads")) {
+            if (!value.equals("platform") && !value.equals("virtual")) return false;
+            threads = value;
+            return true;
+        }
+        if (!option.endsWith("-workers") && !option.endsWith("-queue")) return false;
+        try {
+            int size = Integer.parseInt(value);
+            if (size < 0 || (option.endsWith("-workers") && size == 0)) return false;
+            sizes.put(option, size);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /** usage text of the options configure() takes, for skeletons with the given names */
+    public static String usage(String... names) {
+        StringBuilder usage = new StringBuilder("[--threads=platform|virtual]");
+        for (String name : names) usage.append(" [--").append(name).append("-workers=n] [--").append(name)
+                .append("-queue=n]");
+        return usage.toString();
+    }
+
+    /** a pool for the skeleton called name, of the configured size or else the given one */
+    public Admission(String name, int workers, int queue) {
+        this.name = name;
+        workers = sizes.getOrDefault(name + "-workers", workers);
+        this.queue_capacity = sizes.getOrDefault(name + "-queue", queue);
+        if (threads.equals("virtual")) {
+            this.workers = null;
+            this.per_task = virtual_threads();
+            this.permit_count = workers + queue_capacity;
+            this.permits = new Semaphore(permit_count);
+            return;
+        }
+        this.per_task = null;
+        this.permits = null;
+        this.permit_count = 0;
+        BlockingQueue<Runnable> waiting = queue_capacity == 0 ? new SynchronousQueue<>()
+                : new ArrayBlockingQueue<>(queue_capacity);
+        this.workers = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS, waiting,
+                Executors.defaultThreadFactory());
+        // an idle skeleton gives its threads back
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    /** an executor that starts a virtual thread per task. They need Java 21, so it is looked up
+     *  reflectively and the servers still build and run on platform threads on older JDKs */
+    private static ExecutorService virtual_threads() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("--threads=virtual needs Java 21 or later", e);
+        }
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        long queued = System.nanoTime();
+        if (permits != null && !permits.tryAcquire()) {
+            reject(task);
+            return;
+        }
+        Runnable timed = () -> {
+            long waited = System.nanoTime() - queued;
+            started.incrementAndGet();
+            wait_total.addAndGet(waited);
+            wait_max.accumulateAndGet(waited, Math::max);
+            task.run();
+        };
+        try {
+            if (permits == null) {
+                workers.execute(timed);
+                return;
+            }
+            per_task.execute(() -> {
+                try {
+                    timed.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (permits != null) permits.release();
+            reject(task);
+        }
+    }
+
+    /** run the task on the calling thread, where the filter turns an exchange away */
+    private static void reject(Runnable task) {
+        rejecting.set(Boolean.TRUE);
+        try {
+            task.run();
+        } finally {
+            rejecting.remove();
+        }
+    }
+
+    /** create a context on server whose requests are turned away when this pool is full */
+    public HttpContext context(HttpServer server, String path, HttpHandler handler) {
+        HttpContext context = server.createContext(path, handler);
+        context.getFilters().add(filter);
+        return context;
+    }
+
+    /** the current state of the pool; in virtual thread mode the workers are the permits, and the queue
+     *  is always empty */
+    public MetricsReturn.Skeleton metrics() {
+        long count = started.get();
+        double mean = count == 0 ? 0 : wait_total.get() / (double) count / 1_000_000;
+        if (permits != null) {
+            return new MetricsReturn.Skeleton(name, permit_count, permit_count - permits.availablePermits(), 0,
+                    0, admitted.get(), rejected.get(), mean, wait_max.get() / 1_000_000.0);
+        }
+        return new MetricsReturn.Skeleton(name, workers.getMaximumPoolSize(), workers.getActiveCount(),
+                workers.getQueue().size(), queue_capacity, admitted.get(), rejected.get(), mean,
+                wait_max.get() / 1_000_000.0);
+    }
+}
@@ -0,0 +1,49 @@
+package server;
+
+import com.sun.net.httpserver.HttpExchange;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/** Sends a region of a file as the body of a response, without reading it into the heap first.
+
+    <p>
+    On NioHttpServer the event loop moves the bytes from the file to the socket with
+    FileChannel.transferTo, which the kernel does without copying them through user space. The JDK
+    server only offers the response stream, so there transferTo goes through the small buffer of
+    the channel wrapped around it. Either way the memory a response takes does not grow with its
+    length, and the handler returns as soon as the response is under way.
+ */
+public class FileResponse {
+    /** answer exchange with code and count bytes of file from position on; the response headers must
+     *  be set already. file is closed in any case, and the exchange once the bytes are sent. */
+    public static void send(HttpExchange exchange, int code, FileChannel file, long position, long count)
+            throws IOException {
+        if (exchange instanceof NioExchange) {
+            try {
+                ((NioExchange) exchange).send_file(code, file, position, count);
+            } catch (IOException e) {
+                file.close();
+                throw e;
+            }
+            return;
+        }
+        try (FileChannel f = file) {
+            // -1 tells the JDK server there is no body; 0 would mean chunked
+            exchange.sendResponseHeaders(code, count == 0 ? -1 : count);
+            OutputStream body = exchange.getResponseBody();
+            WritableByteChannel out = Channels.newChannel(body);
+            while (count > 0) {
+                long n = f.transferTo(position, count, out);
+                if (n <= 0) throw new IOException("file truncated while sent");
+                position += n;
+                count -= n;
+            }
+            body.flush();
+        } finally {
+            exchange.close();
+        }
+    }
+}
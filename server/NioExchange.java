@@ -0,0 +1,224 @@
+package server;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpPrincipal;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A request read by NioHttpServer, as handlers see it. The response body is buffered; close() sends
+    it with its headers to the event loop of the connection in one piece.
+ */
+class NioExchange extends HttpExchange {
+    private static final Map<Integer, String> REASONS = new HashMap<>();
+
+    static {
+        REASONS.put(100, "Continue");
+        REASONS.put(200, "OK");
+        REASONS.put(204, "No Content");
+        REASONS.put(206, "Partial Content");
+        REASONS.put(400, "Bad Request");
+        REASONS.put(404, "Not Found");
+        REASONS.put(405, "Method Not Allowed");
+        REASONS.put(409, "Conflict");
+        REASONS.put(411, "Length Required");
+        REASONS.put(416, "Range Not Satisfiable");
+        REASONS.put(431, "Request Header Fields Too Large");
+        REASONS.put(500, "Internal Server Error");
+        REASONS.put(503, "Service Unavailable");
+    }
+
+    /** the response body, readable in place */
+    private static class Body extends ByteArrayOutputStream {
+        private final NioExchange exchange;
+
+        Body(NioExchange exchange) {
+            this.exchange = exchange;
+        }
+
+        ByteBuffer buffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+
+        @Override
+        public void close() {
+            // closing the response stream ends the exchange, as with the JDK server
+            exchange.close();
+        }
+    }
+
+    private final NioHttpServer.Connection connection;
+    private final HttpContext context;
+    private final String method;
+    private final URI uri;
+    private final String protocol;
+    private final Headers request_headers;
+    private final Headers response_headers = new Headers();
+    private final Map<String, Object> attributes = new HashMap<>();
+    private InputStream request_body;
+    private final Body body = new Body(this);
+    private OutputStream response_body = body;
+    /** whether the connection is closed after the response */
+    private boolean close_after;
+    private int code = -1;
+    private boolean closed;
+
+    NioExchange(NioHttpServer.Connection connection, HttpContext context, String method, URI uri, String protocol,
+                Headers headers, InputStream request, boolean close_after) {
+        this.connection = connection;
+        this.context = context;
+        this.method = method;
+        this.uri = uri;
+        this.protocol = protocol;
+        this.request_headers = headers;
+        this.request_body = request;
+        this.close_after = close_after;
+    }
+
+    /** a bodiless response with the given status */
+    static ByteBuffer[] error(int code, String reason) {
+        String head = "HTTP/1.1 " + code + " " + reason + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n";
+        return new ByteBuffer[] {ByteBuffer.wrap(head.getBytes(StandardCharsets.ISO_8859_1))};
+    }
+
+    @Override
+    public Headers getRequestHeaders() {
+        return request_headers;
+    }
+
+    @Override
+    public Headers getResponseHeaders() {
+        return response_headers;
+    }
+
+    @Override
+    public URI getRequestURI() {
+        return uri;
+    }
+
+    @Override
+    public String getRequestMethod() {
+        return method;
+    }
+
+    @Override
+    public HttpContext getHttpContext() {
+        return context;
+    }
+
+    @Override
+    public InputStream getRequestBody() {
+        return request_body;
+    }
+
+    @Override
+    public OutputStream getResponseBody() {
+        return response_body;
+    }
+
+    /** the length is not checked against what is written: the body is buffered and its real length sent */
+    @Override
+    public void sendResponseHeaders(int code, long length) throws IOException {
+        if (this.code != -1) throw new IOException("headers already sent");
+        this.code = code;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) return;
+        closed = true;
+        if (code == -1) {
+            // nothing was answered; like the JDK server, drop the connection
+            connection.abort();
+            return;
+        }
+        connection.respond(new ByteBuffer[] {head(body.size()), body.buffer()}, close_after);
+    }
+
+    /** answer with count bytes of file from position on, which the event loop sends straight from the
+     *  file to the socket; file is closed once they are sent */
+    void send_file(int code, FileChannel file, long position, long count) throws IOException {
+        synchronized (this) {
+            if (this.code != -1 || closed) throw new IOException("headers already sent");
+            this.code = code;
+            closed = true;
+        }
+        connection.respond(new ByteBuffer[] {head(count)}, file, position, count, close_after);
+    }
+
+    /** the status line and headers of a response with a body of length bytes */
+    private ByteBuffer head(long length) {
+        if ("close".equalsIgnoreCase(response_headers.getFirst("Connection"))) close_after = true;
+        StringBuilder head = new StringBuilder("HTTP/1.1 ").append(code).append(' ')
+                .append(REASONS.getOrDefault(code, "Status")).append("\r\n");
+        for (Map.Entry<String, List<String>> header : response_headers.entrySet()) {
+            if (header.getKey().equalsIgnoreCase("Content-length")) continue;
+            for (String value : header.getValue()) head.append(header.getKey()).append(": ").append(value).append("\r\n");
+        }
+        head.append("Content-Length: ").append(length).append("\r\n");
+        if (close_after) head.append("Connection: close\r\n");
+        head.append("\r\n");
+        return ByteBuffer.wrap(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /** drop the connection without answering */
+    void abort() {
+        synchronized (this) {
+            if (closed) return;
+            closed = true;
+        }
+        connection.abort();
+    }
+
+    @Override
+    public InetSocketAddress getRemoteAddress() {
+        return connection.remote();
+    }
+
+    @Override
+    public int getResponseCode() {
+        return code;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return connection.local();
+    }
+
+    @Override
+    public String getProtocol() {
+        return protocol;
+    }
+
+    @Override
+    public Object getAttribute(String name) {
+        return attributes.get(name);
+    }
+
+    @Override
+    public void setAttribute(String name, Object value) {
+        attributes.put(name, value);
+    }
+
+    @Override
+    public void setStreams(InputStream in, OutputStream out) {
+        if (in != null) request_body = in;
+        if (out != null) response_body = out;
+    }
+
+    @Override
+    public HttpPrincipal getPrincipal() {
+        return null;
+    }
+}
@@ -0,0 +1,710 @@
+package server;
+
+import com.sun.net.httpserver.Authenticator;
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpContext;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+
+/** An HttpServer on java.nio selectors, a drop-in for the JDK one behind the skeletons.
+
+    <p>
+    A few event loops, each a thread with its own Selector, own all connections; the first one also
+    accepts them and hands them out round robin. A loop reads a request, line and headers and body,
+    parses it and passes it to the executor, which runs the filters and the handler of the context
+    whose path is the longest prefix of the request path, exactly as the JDK server does. When the
+    handler closes the exchange the response goes back to the loop, which writes it with a gathering
+    write and reads the next request of the connection. A body sent from a file by FileResponse goes
+    from the file to the socket with FileChannel.transferTo, bit by bit as the socket takes it.
+
+    <p>
+    Connections are kept alive unless the client asks otherwise, and a connection holds no buffer
+    while it is idle: reads go into direct buffers taken from a pool of the loop and given back once
+    nothing is left in them, so idle keep-alive connections cost a socket and a few objects only.
+    Connections idle for longer than IDLE_MS are closed.
+
+    <p>
+    One request of a connection is handled at a time; requests pipelined behind it stay in its buffer
+    until the response is written. A body of up to StreamedBody.WINDOW bytes is read whole before the
+    handler runs; a longer or chunked one is handed to it as a StreamedBody while it arrives, and the
+    loop reads no faster than the handler takes it. A response sent before such a body was all read
+    closes the connection.
+ */
+public class NioHttpServer extends HttpServer {
+    /** size of the pooled read buffers, which bounds the request line and headers */
+    private static final int BUFFER_SIZE = 16 * 1024;
+    /** buffers a loop keeps for reuse */
+    private static final int POOLED_BUFFERS = 1024;
+    private static final long IDLE_MS = 60000;
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
+    private final ServerSocketChannel acceptor;
+    private final Loop[] loops;
+    private int next_loop = 0;
+    private final List<Context> contexts = new CopyOnWriteArrayList<>();
+    private volatile Executor executor;
+    private volatile boolean running = true;
+
+    public NioHttpServer(InetSocketAddress address, int backlog, int loops) throws IOException {
+        this.acceptor = ServerSocketChannel.open();
+        this.acceptor.bind(address, backlog);
+        this.acceptor.configureBlocking(false);
+        this.loops = new Loop[loops];
+        for (int i = 0; i < loops; i++) this.loops[i] = new Loop(i);
+    }
+
+    @Override
+    public void bind(InetSocketAddress address, int backlog) throws IOException {
+        this.acceptor.bind(address, backlog);
+    }
+
+    @Override
+    public void start() {
+        loops[0].submit(() -> {
+            try {
+                acceptor.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+            } catch (ClosedChannelException e) {
+                e.printStackTrace();
+            }
+        });
+        for (Loop loop : loops) loop.thread.start();
+    }
+
+    @Override
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    @Override
+    public void stop(int delay) {
+        running = false;
+        try {
+            acceptor.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        for (Loop loop : loops) loop.selector.wakeup();
+    }
+
+    @Override
+    public HttpContext createContext(String path, HttpHandler handler) {
+        for (Context c : contexts) {
+            if (c.path.equals(path)) throw new IllegalArgumentException("cannot add context to list");
+        }
+        Context context = new Context(path, handler);
+        contexts.add(context);
+        return context;
+    }
+
+    @Override
+    public HttpContext createContext(String path) {
+        return createContext(path, null);
+    }
+
+    @Override
+    public void removeContext(String path) {
+        if (!contexts.removeIf(c -> c.path.equals(path))) throw new IllegalArgumentException("cannot remove " + path);
+    }
+
+    @Override
+    public void removeContext(HttpContext context) {
+        contexts.remove(context);
+    }
+
+    @Override
+    public InetSocketAddress getAddress() {
+        try {
+            return (InetSocketAddress) acceptor.getLocalAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /** the context with the longest path that prefixes path, or null */
+    private Context context_of(String path) {
+        Context found = null;
+        for (Context c : contexts) {
+            if (path.startsWith(c.path) && (found == null || c.path.length() > found.path.length())) found = c;
+        }
+        return found;
+    }
+
+    private class Context extends HttpContext {
+        private final String path;
+        private volatile HttpHandler handler;
+        private final Map<String, Object> attributes = new HashMap<>();
+        private final List<Filter> filters = new CopyOnWriteArrayList<>();
+        private Authenticator authenticator;
+
+        Context(String path, HttpHandler handler) {
+            this.path = path;
+            this.handler = handler;
+        }
+
+        @Override
+        public HttpHandler getHandler() {
+            return handler;
+        }
+
+        @Override
+        public void setHandler(HttpHandler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public String getPath() {
+            return path;
+        }
+
+        @Override
+        public HttpServer getServer() {
+            return NioHttpServer.this;
+        }
+
+        @Override
+        public Map<String, Object> getAttributes() {
+            return attributes;
+        }
+
+        @Override
+        public List<Filter> getFilters() {
+            return filters;
+        }
+
+        @Override
+        public Authenticator setAuthenticator(Authenticator authenticator) {
+            Authenticator old = this.authenticator;
+            this.authenticator = authenticator;
+            return old;
+        }
+
+        @Override
+        public Authenticator getAuthenticator() {
+            return authenticator;
+        }
+    }
+
+    /** a selector thread and the connections registered with it */
+    private class Loop implements Runnable {
+        final Selector selector;
+        final Thread thread;
+        /** work handed over by other threads, run by the loop after it wakes up */
+        final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        /** read buffers nobody uses; only touched by the loop thread */
+        final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+        long last_sweep = System.currentTimeMillis();
+
+        Loop(int i) throws IOException {
+            this.selector = Selector.open();
+            // like the dispatcher of the JDK server, the loops keep the process alive
+            this.thread = new Thread(this, "http-loop-" + i);
+        }
+
+        void submit(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        ByteBuffer take() {
+            ByteBuffer buffer = buffers.poll();
+            return buffer != null ? buffer : ByteBuffer.allocateDirect(BUFFER_SIZE);
+        }
+
+        void give(ByteBuffer buffer) {
+            buffer.clear();
+            if (buffers.size() < POOLED_BUFFERS) buffers.push(buffer);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select(1000);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                for (Runnable task; (task = tasks.poll()) != null; ) {
+                    try {
+                        task.run();
+                    } catch (CancelledKeyException e) {
+                        // the connection was closed meanwhile
+                    }
+                }
+                for (SelectionKey key : selector.selectedKeys()) {
+                    try {
+                        if (!key.isValid()) continue;
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Connection connection = (Connection) key.attachment();
+                        if (key.isWritable()) connection.write();
+                        if (key.isValid() && key.isReadable()) connection.read();
+                    } catch (CancelledKeyException e) {
+                        // closed while it was handled
+                    }
+                }
+                selector.selectedKeys().clear();
+                long now = System.currentTimeMillis();
+                if (now - last_sweep >= 1000) {
+                    last_sweep = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (!(key.attachment() instanceof Connection)) continue;
+                        Connection connection = (Connection) key.attachment();
+                        if (!connection.busy && now - connection.last_active > IDLE_MS) connection.close();
+                    }
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof Connection) ((Connection) key.attachment()).close();
+            }
+            // responses handed over meanwhile; on closed connections they only release their files
+            for (Runnable task; (task = tasks.poll()) != null; ) {
+                try {
+                    task.run();
+                } catch (CancelledKeyException e) {
+                    // the connection was closed meanwhile
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        private void accept() {
+            while (true) {
+                SocketChannel channel;
+                try {
+                    channel = acceptor.accept();
+                    if (channel == null) return;
+                    channel.configureBlocking(false);
+                    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return;
+                }
+                Loop loop = loops[next_loop++ % loops.length];
+                if (loop == this) loop.register(channel);
+                else loop.submit(() -> loop.register(channel));
+            }
+        }
+
+        private void register(SocketChannel channel) {
+            try {
+                Connection connection = new Connection(this, channel);
+                connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+            } catch (IOException e) {
+                try {
+                    channel.close();
+                } catch (IOException ignored) {
+                }
+            }
+        }
+    }
+
+    /** a client connection; everything but respond() runs on the thread of its loop */
+    class Connection {
+        private static final int HEAD = 0;
+        private static final int BODY = 1;
+        private static final int CHUNK_SIZE = 2;
+        private static final int CHUNK_DATA = 3;
+        private static final int CHUNK_END = 4;
+        private static final int TRAILER = 5;
+
+        final Loop loop;
+        final SocketChannel channel;
+        SelectionKey key;
+        /** bytes read and not parsed yet, in write mode; null while there are none */
+        ByteBuffer in;
+        int state = HEAD;
+        /** the request being read */
+        String method;
+        String target;
+        String protocol;
+        Headers headers;
+        byte[] body;
+        int filled;
+        /** body handed to the handler while it arrives, and how much of it is still to come */
+        StreamedBody streaming;
+        long body_left;
+        /** what is left of the current chunk of a chunked body */
+        int chunk_left;
+        /** response being written, and the region of a file sent after it as its body */
+        ByteBuffer[] out;
+        FileChannel file;
+        long file_position;
+        long file_left;
+        boolean close_after;
+        /** set while a request is with its handler or its response is written */
+        boolean busy;
+        long last_active = System.currentTimeMillis();
+
+        Connection(Loop loop, SocketChannel channel) {
+            this.loop = loop;
+            this.channel = channel;
+        }
+
+        InetSocketAddress remote() {
+            return (InetSocketAddress) channel.socket().getRemoteSocketAddress();
+        }
+
+        InetSocketAddress local() {
+            return (InetSocketAddress) channel.socket().getLocalSocketAddress();
+        }
+
+        void read() {
+            if (in == null) in = loop.take();
+            int n;
+            try {
+                n = channel.read(in);
+            } catch (IOException e) {
+                n = -1;
+            }
+            if (n < 0) {
+                close();
+                return;
+            }
+            last_active = System.currentTimeMillis();
+            parse();
+        }
+
+        /** advance the request with the bytes in the buffer, and dispatch it once it is complete */
+        private void parse() {
+            try {
+                while ((!busy || streaming != null) && in != null && in.position() > 0) {
+                    if (state == HEAD) {
+                        int end = find("\r\n\r\n");
+                        if (end < 0) {
+                            if (!in.hasRemaining()) fail(431, "Request Header Fields Too Large");
+                            return;
+                        }
+                        head(consume(end + 4));
+                        if (state == HEAD || streaming != null) dispatch();
+                    } else if (state == BODY && streaming != null) {
+                        int n = feed((int) Math.min(body_left, Integer.MAX_VALUE));
+                        if (n == 0) return;
+                        body_left -= n;
+                        if (body_left == 0) end_stream();
+                    } else if (state == BODY) {
+                        filled += drain(body, filled, body.length - filled);
+                        if (filled == body.length) dispatch();
+                    } else if (state == CHUNK_SIZE || state == CHUNK_END || state == TRAILER) {
+                        int end = find("\r\n");
+                        if (end < 0) {
+                            if (!in.hasRemaining()) fail(400, "Bad Request");
+                            return;
+                        }
+                        String line = new String(consume(end + 2), 0, end, StandardCharsets.ISO_8859_1);
+                        if (state == CHUNK_END) {
+                            state = CHUNK_SIZE;
+                        } else if (state == TRAILER) {
+                            if (line.isEmpty()) end_stream();
+                        } else {
+                            int semicolon = line.indexOf(';');
+                            chunk_left = Integer.parseInt((semicolon < 0 ? line : line.substring(0, semicolon)).trim(), 16);
+                            state = chunk_left == 0 ? TRAILER : CHUNK_DATA;
+                        }
+                    } else {
+                        int n = feed(chunk_left);
+                        if (n == 0) return;
+                        chunk_left -= n;
+                        if (chunk_left == 0) state = CHUNK_END;
+                    }
+                }
+            } catch (RuntimeException e) {
+                fail(400, "Bad Request");
+            } finally {
+                if (in != null && in.position() == 0) {
+                    loop.give(in);
+                    in = null;
+                }
+            }
+        }
+
+        /** parse the request line and headers, and get ready for the body */
+        private void head(byte[] bytes) {
+            String[] lines = new String(bytes, StandardCharsets.ISO_8859_1).split("\r\n");
+            int start = 0;
+            // tolerate empty lines before the request line
+            while (lines[start].isEmpty()) start++;
+            String[] request = lines[start].split(" ");
+            if (request.length != 3) throw new IllegalArgumentException("request line " + lines[start]);
+            method = request[0];
+            target = request[1];
+            protocol = request[2];
+            headers = new Headers();
+            for (int i = start + 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon <= 0) throw new IllegalArgumentException("header " + lines[i]);
+                headers.add(lines[i].substring(0, colon).trim(), lines[i].substring(colon + 1).trim());
+            }
+            if ("100-continue".equalsIgnoreCase(headers.getFirst("Expect"))) {
+                try {
+                    // a few bytes into an idle socket, written at once
+                    channel.write(ByteBuffer.wrap(CONTINUE));
+                } catch (IOException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            String encoding = headers.getFirst("Transfer-encoding");
+            String length = headers.getFirst("Content-length");
+            if (encoding != null && encoding.equalsIgnoreCase("chunked")) {
+                streaming = new StreamedBody(this::resume_body);
+                state = CHUNK_SIZE;
+            } else if (length != null && Long.parseLong(length.trim()) > StreamedBody.WINDOW) {
+                streaming = new StreamedBody(this::resume_body);
+                body_left = Long.parseLong(length.trim());
+                state = BODY;
+            } else if (length != null && Long.parseLong(length.trim()) > 0) {
+                body = new byte[Math.toIntExact(Long.parseLong(length.trim()))];
+                filled = 0;
+                state = BODY;
+            } else {
+                body = new byte[0];
+            }
+        }
+
+        /** hand the request to the executor and stop reading until the response is written */
+        private void dispatch() {
+            busy = true;
+            if (streaming == null) {
+                state = HEAD;
+                key.interestOps(0);
+            }
+            boolean close = protocol.equals("HTTP/1.0")
+                    ? !"keep-alive".equalsIgnoreCase(headers.getFirst("Connection"))
+                    : "close".equalsIgnoreCase(headers.getFirst("Connection"));
+            URI uri;
+            try {
+                uri = new URI(target);
+            } catch (URISyntaxException e) {
+                fail(400, "Bad Request");
+                return;
+            }
+            Context context = context_of(uri.getPath() == null ? "/" : uri.getPath());
+            if (context == null || context.handler == null) {
+                respond(NioExchange.error(404, "Not Found"), close);
+                return;
+            }
+            InputStream request = streaming != null ? streaming : new ByteArrayInputStream(body);
+            NioExchange exchange = new NioExchange(this, context, method, uri, protocol, headers, request, close);
+            body = null;
+            headers = null;
+            Runnable handle = () -> {
+                try {
+                    new Filter.Chain(context.getFilters(), context.getHandler()).doFilter(exchange);
+                } catch (Throwable e) {
+                    // as the JDK server does, drop the connection of a handler that failed
+                    e.printStackTrace();
+                    exchange.abort();
+                }
+            };
+            Executor executor = NioHttpServer.this.executor;
+            if (executor == null) handle.run();
+            else executor.execute(handle);
+        }
+
+        /** answer a request that cannot be parsed and drop the connection */
+        private void fail(int code, String reason) {
+            if (streaming != null) {
+                // the handler has the request already and answers it; it sees the body break off
+                close();
+                return;
+            }
+            busy = true;
+            key.interestOps(0);
+            respond(NioExchange.error(code, reason), true);
+        }
+
+        /** write a response; may be called from any thread */
+        void respond(ByteBuffer[] response, boolean close) {
+            respond(response, null, 0, 0, close);
+        }
+
+        /** write a response whose body is count bytes of file from position on, then close file; file is
+         *  closed as well when the connection is gone before the response is written. May be called
+         *  from any thread */
+        void respond(ByteBuffer[] response, FileChannel file, long position, long count, boolean close) {
+            Runnable send = () -> {
+                out = response;
+                this.file = file;
+                file_position = position;
+                file_left = count;
+                // the rest of a body the handler did not wait for cannot be told from the next request
+                close_after = close || streaming != null;
+                write();
+            };
+            if (Thread.currentThread() == loop.thread) send.run();
+            else loop.submit(send);
+        }
+
+        /** drop the connection without a response; may be called from any thread */
+        void abort() {
+            if (Thread.currentThread() == loop.thread) close();
+            else loop.submit(this::close);
+        }
+
+        void write() {
+            if (out == null) return;
+            if (!channel.isOpen()) {
+                // closed before the response came; nothing will send the file any more
+                out = null;
+                release_file();
+                return;
+            }
+            try {
+                channel.write(out);
+                if (!out[out.length - 1].hasRemaining()) send_file();
+            } catch (IOException e) {
+                close();
+                return;
+            }
+            last_active = System.currentTimeMillis();
+            if (out[out.length - 1].hasRemaining() || file_left > 0) {
+                key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+            out = null;
+            release_file();
+            if (close_after) {
+                close();
+                return;
+            }
+            busy = false;
+            key.interestOps(SelectionKey.OP_READ);
+            // a request pipelined behind the one answered
+            parse();
+        }
+
+        /** send what the socket takes of the file region, straight from the file to the socket */
+        private void send_file() throws IOException {
+            while (file_left > 0) {
+                long n = file.transferTo(file_position, file_left, channel);
+                if (n <= 0) {
+                    // the file was cut short under us: the promised length cannot be sent any more
+                    if (file_position >= file.size()) throw new IOException("file truncated while sent");
+                    return;
+                }
+                file_position += n;
+                file_left -= n;
+            }
+        }
+
+        private void release_file() {
+            if (file == null) return;
+            try {
+                file.close();
+            } catch (IOException ignored) {
+            }
+            file = null;
+            file_left = 0;
+        }
+
+        /** pass up to max unparsed bytes on to the handler; when its window is full, stop reading until
+         *  the handler made room */
+        private int feed(int max) {
+            in.flip();
+            int wanted = Math.min(max, in.remaining());
+            int n = streaming.put(in, wanted);
+            in.compact();
+            if (n < wanted) key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            return n;
+        }
+
+        /** the handler read from a full window; may be called from any thread */
+        void resume_body() {
+            loop.submit(() -> {
+                if (streaming == null || !channel.isOpen()) return;
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                parse();
+            });
+        }
+
+        /** the last byte of a streamed body is in; nothing more is read until the response is written */
+        private void end_stream() {
+            StreamedBody body = streaming;
+            streaming = null;
+            state = HEAD;
+            if (out == null) key.interestOps(0);
+            body.end();
+        }
+
+        void close() {
+            if (streaming != null) {
+                streaming.abort();
+                streaming = null;
+            }
+            release_file();
+            if (in != null) {
+                loop.give(in);
+                in = null;
+            }
+            if (key != null) key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        /** index of the first occurrence of pattern in the unparsed bytes, or -1 */
+        private int find(String pattern) {
+            int limit = in.position() - pattern.length();
+            outer:
+            for (int i = 0; i <= limit; i++) {
+                for (int j = 0; j < pattern.length(); j++) {
+                    if (in.get(i + j) != pattern.charAt(j)) continue outer;
+                }
+                return i;
+            }
+            return -1;
+        }
+
+        /** take n unparsed bytes out of the buffer */
+        private byte[] consume(int n) {
+            byte[] bytes = new byte[n];
+            drain(bytes, 0, n);
+            return bytes;
+        }
+
+        /** move up to n unparsed bytes into into[offset..]; returns how many */
+        private int drain(byte[] into, int offset, int n) {
+            in.flip();
+            n = Math.min(n, in.remaining());
+            in.get(into, offset, n);
+            in.compact();
+            return n;
+        }
+    }
+}
@@ -0,0 +1,310 @@
+package server;
+
+import jsonhelper.MetricsReturn;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** HTTP/1.1 client for the requests the servers make to each other: naming to storage commands, storage
+    to storage copies and the registration of a storage server.
+
+    <p>
+    Connections are kept alive and pooled per destination, so a loop such as replicate() or
+    deleteReplicas() pays one TCP handshake per storage server instead of one per request. At most
+    MAX_PER_HOST requests to one destination are in flight at a time; a request that cannot get a
+    slot within the request timeout fails, as does one that takes longer than that to be answered.
+    A pooled connection the other side closed while it was idle is only found out when it is used.
+    If writing the request to it fails, the other side cannot have the whole request, and the request
+    is sent once more on a new connection. If the request went out but no response came back, the other
+    side may have carried it out before closing, so only a GET is sent again; a POST fails as it would
+    on a new connection.
+ */
+public class PeerClient {
+    /** requests to one destination in flight at a time */
+    private static final int MAX_PER_HOST = 32;
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    /** connections idle for longer are closed rather than reused; the JDK server drops them at 30s */
+    private static final long IDLE_MS = 20000;
+
+    /** a response: its status, its headers and its body */
+    public static class Response {
+        private final int status;
+        /** by lower case name */
+        private final Map<String, String> headers;
+        private final byte[] body;
+
+        Response(int status, Map<String, String> headers, byte[] body) {
+            this.status = status;
+            this.headers = headers;
+            this.body = body;
+        }
+
+        public int statusCode() {
+            return status;
+        }
+
+        /** the value of the header name, or null */
+        public String header(String name) {
+            return headers.get(name.toLowerCase(Locale.ROOT));
+        }
+
+        /** the body as json text */
+        public String body() {
+            return new String(body, StandardCharsets.UTF_8);
+        }
+
+        public byte[] bytes() {
+            return body;
+        }
+    }
+
+    private static class Connection {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        long idle_since;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new BufferedInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** the connections to one destination */
+    private static class Pool {
+        final Semaphore slots = new Semaphore(MAX_PER_HOST);
+        /** idle connections, most recently used first; guarded by itself */
+        final ArrayDeque<Connection> idle = new ArrayDeque<>();
+    }
+
+    private final ConcurrentHashMap<String, Pool> pools = new ConcurrentHashMap<>();
+    private final int timeout_ms;
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong reused = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    /** @param timeout_ms how long a request may wait for a slot, and then for its response */
+    public PeerClient(int timeout_ms) {
+        this.timeout_ms = timeout_ms;
+    }
+
+    /** POST a json body to api on ip:port and return the response */
+    public Response post(String ip, int port, String api, String json) throws IOException, InterruptedException {
+        return call(ip, port, "POST", api, "Content-Type: application/json\r\n", json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /** GET api, a path with its query, on ip:port; headers are extra header lines such as "Range: bytes=0-9" */
+    public Response get(String ip, int port, String api, String... headers) throws IOException, InterruptedException {
+        StringBuilder lines = new StringBuilder();
+        for (String header : headers) lines.append(header).append("\r\n");
+        return call(ip, port, "GET", api, lines.toString(), null);
+    }
+
+    private Response call(String ip, int port, String method, String api, String headers, byte[] body)
+            throws IOException, InterruptedException {
+        Pool pool = pools.computeIfAbsent(ip + ":" + port, destination -> new Pool());
+        if (!pool.slots.tryAcquire(timeout_ms, TimeUnit.MILLISECONDS)) {
+            failed.incrementAndGet();
+            throw new HttpTimeoutException("too many requests in flight to " + ip + ":" + port);
+        }
+        requests.incrementAndGet();
+        byte[] request = request(ip, port, method, api, headers, body);
+        try {
+            Connection connection = idle(pool);
+            if (connection != null) {
+                try {
+                    Response response = send(pool, connection, request, true, method.equals("GET"));
+                    reused.incrementAndGet();
+                    return response;
+                } catch (StaleConnection e) {
+                    // closed by the other side while idle; try a new one
+                }
+            }
+            connection = connect(ip, port);
+            return send(pool, connection, request, false, false);
+        } catch (SocketTimeoutException e) {
+            failed.incrementAndGet();
+            throw new HttpTimeoutException(api + " on " + ip + ":" + port + " timed out");
+        } catch (IOException e) {
+            failed.incrementAndGet();
+            throw e;
+        } finally {
+            pool.slots.release();
+        }
+    }
+
+    /** the traffic so far */
+    public MetricsReturn.Peers metrics() {
+        long total = reused.get() + handshakes.get();
+        return new MetricsReturn.Peers(requests.get(), handshakes.get(), reused.get(), failed.get(),
+                total == 0 ? 0 : reused.get() / (double) total);
+    }
+
+    /** a connection of the pool recent enough to reuse, or null */
+    private static Connection idle(Pool pool) {
+        long now = System.currentTimeMillis();
+        synchronized (pool.idle) {
+            Connection connection;
+            while ((connection = pool.idle.poll()) != null) {
+                if (now - connection.idle_since < IDLE_MS && !connection.socket.isClosed()) return connection;
+                connection.close();
+            }
+        }
+        return null;
+    }
+
+    private Connection connect(String ip, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(ip, port), CONNECT_TIMEOUT_MS);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeout_ms);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        handshakes.incrementAndGet();
+        return new Connection(socket);
+    }
+
+    /** the request line, headers and body; a null body is sent without a Content-Length */
+    private static byte[] request(String ip, int port, String method, String api, String headers, byte[] body) {
+        String head = method + " " + api + " HTTP/1.1\r\nHost: " + ip + ":" + port + "\r\n" + headers
+                + (body != null ? "Content-Length: " + body.length + "\r\n" : "") + "\r\n";
+        if (body == null) body = new byte[0];
+        byte[] bytes = head.getBytes(StandardCharsets.ISO_8859_1);
+        byte[] request = new byte[bytes.length + body.length];
+        System.arraycopy(bytes, 0, request, 0, bytes.length);
+        System.arraycopy(body, 0, request, bytes.length, body.length);
+        return request;
+    }
+
+    /** a reused connection that failed such that the request can be sent again on a new one */
+    private static class StaleConnection extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    /** send request on connection and read the response, then pool the connection or close it. A reused
+     *  connection throws StaleConnection if writing the request failed, or, when retry_read, if it was
+     *  closed before anything of the response was read */
+    private Response send(Pool pool, Connection connection, byte[] request, boolean reused, boolean retry_read)
+            throws IOException {
+        boolean keep = false;
+        try {
+            try {
+                connection.out.write(request);
+                connection.out.flush();
+            } catch (IOException e) {
+                if (reused && !(e instanceof SocketTimeoutException)) throw new StaleConnection();
+                throw e;
+            }
+            String status_line;
+            try {
+                status_line = line(connection.in);
+            } catch (IOException e) {
+                if (retry_read && !(e instanceof SocketTimeoutException)) throw new StaleConnection();
+                throw e;
+            }
+            if (status_line == null) {
+                if (retry_read) throw new StaleConnection();
+                throw new IOException("connection closed before the response");
+            }
+            String[] status = status_line.split(" ", 3);
+            int code = Integer.parseInt(status[1]);
+            long length = -1;
+            boolean chunked = false;
+            boolean close = status[0].equals("HTTP/1.0");
+            Map<String, String> headers = new HashMap<>();
+            for (String header; (header = line(connection.in)) != null && !header.isEmpty(); ) {
+                int colon = header.indexOf(':');
+                if (colon < 0) continue;
+                String name = header.substring(0, colon).trim();
+                String value = header.substring(colon + 1).trim();
+                headers.put(name.toLowerCase(Locale.ROOT), value);
+                if (name.equalsIgnoreCase("Content-Length")) length = Long.parseLong(value);
+                else if (name.equalsIgnoreCase("Transfer-Encoding")) chunked = value.equalsIgnoreCase("chunked");
+                else if (name.equalsIgnoreCase("Connection")) close = value.equalsIgnoreCase("close");
+            }
+            byte[] body;
+            if (chunked) body = chunked(connection.in);
+            else if (length >= 0) body = exactly(connection.in, Math.toIntExact(length));
+            else {
+                // delimited by the end of the connection
+                body = connection.in.readAllBytes();
+                close = true;
+            }
+            keep = !close;
+            return new Response(code, headers, body);
+        } finally {
+            if (keep) {
+                connection.idle_since = System.currentTimeMillis();
+                synchronized (pool.idle) {
+                    pool.idle.push(connection);
+                }
+            } else {
+                connection.close();
+            }
+        }
+    }
+
+    /** a line without its CRLF, or null at the end of the stream */
+    private static String line(InputStream in) throws IOException {
+        StringBuilder line = new StringBuilder();
+        int c;
+        while ((c = in.read()) != -1) {
+            if (c == '\n') {
+                int end = line.length();
+                if (end > 0 && line.charAt(end - 1) == '\r') line.setLength(end - 1);
+                return line.toString();
+            }
+            line.append((char) c);
+        }
+        return line.length() == 0 ? null : line.toString();
+    }
+
+    private static byte[] exactly(InputStream in, int length) throws IOException {
+        byte[] bytes = in.readNBytes(length);
+        if (bytes.length != length) throw new IOException("connection closed in the middle of the response");
+        return bytes;
+    }
+
+    private static byte[] chunked(InputStream in) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String size = line(in);
+            if (size == null) throw new IOException("connection closed in the middle of the response");
+            int semicolon = size.indexOf(';');
+            int length = Integer.parseInt((semicolon < 0 ? size : size.substring(0, semicolon)).trim(), 16);
+            if (length == 0) break;
+            body.write(exactly(in, length));
+            line(in);
+        }
+        // trailers, up to the empty line
+        for (String trailer; (trailer = line(in)) != null && !trailer.isEmpty(); ) ;
+        return body.toByteArray();
+    }
+}
@@ -0,0 +1,45 @@
+package server;
+
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+/** Creates the HttpServer of a skeleton on the transport chosen on the command line: the JDK server
+    (<code>--http=jdk</code>, the default) or NioHttpServer (<code>--http=nio</code>, with
+    <code>--http-loops=n</code> event loops). Either way the skeleton registers its handlers through
+    createContext() and sets its executor as before.
+ */
+public class Skeleton {
+    /** "jdk" or "nio" */
+    private static String http = "jdk";
+    /** event loops of each NioHttpServer */
+    private static int loops = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+
+    /** consume a command line option choosing the transport; returns false if arg is not one of them */
+    public static boolean configure(String arg) {
+        if (arg.equals("--http=jdk") || arg.equals("--http=nio")) {
+            http = arg.substring("--http=".length());
+            return true;
+        }
+        if (!arg.startsWith("--http-loops=")) return false;
+        try {
+            int n = Integer.parseInt(arg.substring("--http-loops=".length()));
+            if (n <= 0) return false;
+            loops = n;
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /** usage text of the options configure() takes */
+    public static String usage() {
+        return "[--http=jdk|nio] [--http-loops=n]";
+    }
+
+    /** a server bound to address, not started yet */
+    public static HttpServer create(InetSocketAddress address, int backlog) throws IOException {
+        if (http.equals("nio")) return new NioHttpServer(address, backlog, loops);
+        return HttpServer.create(address, backlog);
+    }
+}
@@ -0,0 +1,131 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** The body of a request NioHttpServer hands to its handler before the body has arrived. The event
+    loop puts bytes in as it reads them and the handler takes them out; in between they wait in a
+    window of WINDOW bytes. When the window is full the loop stops reading the socket, and the first
+    read of the handler that makes room again has it resume, so a body of any length takes no more
+    memory than the window.
+
+    <p>
+    A ReentrantLock rather than a monitor, so a handler on a virtual thread that waits for bytes gives
+    up its carrier.
+ */
+class StreamedBody extends InputStream {
+    static final int WINDOW = 64 * 1024;
+
+    private final byte[] window = new byte[WINDOW];
+    /** the bytes in the window start at head and wrap around */
+    private int head;
+    private int count;
+    private boolean ended;
+    private boolean aborted;
+    /** the loop stopped reading because the window was full */
+    private boolean paused;
+    /** run when the handler made room after the loop paused */
+    private final Runnable resume;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition readable = lock.newCondition();
+
+    StreamedBody(Runnable resume) {
+        this.resume = resume;
+    }
+
+    /** move up to max bytes from the buffer into the window; the loop must pause when fewer than
+     *  max and fewer than the buffer had went in */
+    int put(ByteBuffer from, int max) {
+        lock.lock();
+        try {
+            int wanted = Math.min(max, from.remaining());
+            int n = Math.min(wanted, window.length - count);
+            int tail = (head + count) % window.length;
+            int first = Math.min(n, window.length - tail);
+            from.get(window, tail, first);
+            from.get(window, 0, n - first);
+            count += n;
+            if (n < wanted) paused = true;
+            if (n > 0) readable.signalAll();
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** all of the body is in */
+    void end() {
+        lock.lock();
+        try {
+            ended = true;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** the connection is gone before the body was all in */
+    void abort() {
+        lock.lock();
+        try {
+            aborted = true;
+            readable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] one = new byte[1];
+        return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] into, int offset, int length) throws IOException {
+        if (length == 0) return 0;
+        boolean wake;
+        int n;
+        lock.lock();
+        try {
+            while (count == 0 && !ended && !aborted) {
+                try {
+                    readable.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (count == 0) {
+                if (aborted) throw new IOException("connection closed before the end of the request body");
+                return -1;
+            }
+            n = Math.min(length, count);
+            int first = Math.min(n, window.length - head);
+            System.arraycopy(window, head, into, offset, first);
+            System.arraycopy(window, 0, into, offset + first, n - first);
+            head = (head + n) % window.length;
+            count -= n;
+            wake = paused;
+            paused = false;
+        } finally {
+            lock.unlock();
+        }
+        if (wake) resume.run();
+        return n;
+    }
+
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -2,18 +2,40 @@ package storage;
 
 import java.io.*;
 import java.net.InetSocketAddress;
-import java.net.URI;
-import java.net.http.HttpClient;
-import java.net.http.HttpRequest;
-import java.net.http.HttpResponse;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Base64;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32C;
 import jsonhelper.*;
 import com.google.gson.Gson;
 import com.sun.net.httpserver.HttpServer;
 import com.sun.net.httpserver.HttpExchange;
+import server.Admission;
+import server.FileResponse;
+import server.PeerClient;
+import server.Skeleton;
 import test.common.Path;
 
 public class StorageServer {
@@ -24,11 +46,44 @@ public class StorageServer {
     private static int COMMAND_PORT;
     private static int REGISTRATION_PORT;
     private static String ROOT_DIR;
+    /** threads of each skeleton, and requests that may wait for one before new ones are turned away */
+    private static final int CLIENT_THREADS = Math.max(8, 4 * Runtime.getRuntime().availableProcessors());
+    private static final int CLIENT_QUEUE = 1024;
+    private static final int COMMAND_THREADS = Math.max(4, 2 * Runtime.getRuntime().availableProcessors());
+    private static final int COMMAND_QUEUE = 256;
     private static File directory;
     /** Client interface skeleton. */
     protected HttpServer            client_skeleton;
     /** Command interface skeleton. */
     protected HttpServer            command_skeleton;
+    /** Connections to the naming server and the other storage servers, kept alive between requests. */
+    private final PeerClient        peers = new PeerClient(PEER_TIMEOUT_MS);
+    /** How long a request to another server may take, reads of large files included. */
+    private static final int        PEER_TIMEOUT_MS = 120000;
+    /** Worker pools of the skeletons. */
+    private Admission               client_admission;
+    private Admission               command_admission;
+    /** Direct buffers of streamed writes, one per write in flight, kept for the next ones. */
+    private static final int        STREAM_BUFFER = 256 * 1024;
+    private final ConcurrentLinkedQueue<ByteBuffer> stream_buffers = new ConcurrentLinkedQueue<>();
+    /** Copies from other storage servers: the chunk size, the chunk requests in flight per copy, and the
+        tries of a chunk before the copy fails. A copy holds at most COPY_IN_FLIGHT + 1 chunks in memory. */
+    private static final int        COPY_CHUNK = 1024 * 1024;
+    private static final int        COPY_IN_FLIGHT = 4;
+    private static final int        COPY_ATTEMPTS = 3;
+    /** Suffix of the temporary file a copy is written to before it is renamed into place. */
+    private static final String     PARTIAL_SUFFIX = ".partial";
+    /** Names of those temporary files, "." + name + ":" + copy number + PARTIAL_SUFFIX. No client file
+        has a ':' in its path, which /storage_create and /storage_copy refuse, so none matches. */
+    private static final Pattern    PARTIAL_NAME = Pattern.compile("\\..*:[0-9]+" + Pattern.quote(PARTIAL_SUFFIX));
+    /** Copies started, which names their temporary files apart. */
+    private final AtomicLong        copies = new AtomicLong();
+    /** Threads that fetch the chunks of copies, shared by all of them. */
+    private final ExecutorService   copy_fetchers = Executors.newFixedThreadPool(4 * COPY_IN_FLIGHT, task -> {
+        Thread thread = new Thread(task, "copy-fetch");
+        thread.setDaemon(true);
+        return thread;
+    });
     /** Indicates that the skeletons have been started. */
     private boolean                 skeletons_started;
     /** Gson object which can parse json to an object. */
@@ -48,11 +103,15 @@ public class StorageServer {
         if(skeletons_started)
             return;
 
-        this.client_skeleton = HttpServer.create(new InetSocketAddress(CLIENT_PORT), 0);
-        this.client_skeleton.setExecutor(Executors.newCachedThreadPool());
+        // handlers block on disk I/O and, for copies, on another storage server, so each runs on its own
+        // worker; a full pool answers 503 instead of spawning more threads
+        this.client_skeleton = Skeleton.create(new InetSocketAddress(CLIENT_PORT), 0);
+        this.client_admission = new Admission("client", CLIENT_THREADS, CLIENT_QUEUE);
+        this.client_skeleton.setExecutor(this.client_admission);
 
-        this.command_skeleton = HttpServer.create(new InetSocketAddress(COMMAND_PORT), 0);
-        this.command_skeleton.setExecutor(Executors.newCachedThreadPool());
+        this.command_skeleton = Skeleton.create(new InetSocketAddress(COMMAND_PORT), 0);
+        this.command_admission = new Admission("command", COMMAND_THREADS, COMMAND_QUEUE);
+        this.command_skeleton.setExecutor(this.command_admission);
 
         // Start the client interface skeleton and create the stub.
         client_skeleton.start();
@@ -69,12 +128,12 @@ public class StorageServer {
 
     /** Register to a naming server
      */
-    public HttpResponse<String> register(Gson gson, String[] files)
+    public PeerClient.Response register(Gson gson, String[] files)
     {
 
         RegisterRequest registerRequest = new RegisterRequest(STORAGE_IP, CLIENT_PORT, COMMAND_PORT, files);
 
-        HttpResponse<String> response = null;
+        PeerClient.Response response = null;
 
         try{
             response = this.getResponse(STORAGE_IP, REGISTRATION_PORT, "/register", registerRequest);
@@ -89,12 +148,13 @@ public class StorageServer {
 
     public synchronized void start() throws IOException {
         // Start storage server skeletons.
+        remove_partial_copies(directory);
         Path[] result = Path.list(directory);
         String[] allFiles = new String[result.length];
         for (int i = 0; i < result.length; i++) allFiles[i] = result[i].toString();
 
         // Register the storage server with the naming server.
-        HttpResponse<String> response = register(gson, allFiles);
+        PeerClient.Response response = register(gson, allFiles);
 
         allFiles = gson.fromJson(response.body(), FilesReturn.class).files;
         for (String eachpath : allFiles){
@@ -112,7 +172,9 @@ public class StorageServer {
     {
         this.size();
         this.read();
+        this.stream();
         this.write();
+        this.write_stream();
     }
 
     /** Add APIs supported by command skeleton. */
@@ -121,11 +183,23 @@ public class StorageServer {
         this.create();
         this.delete();
         this.copy();
+        this.metrics();
+    }
+
+    /** the worker pools of both skeletons, answered even when they are full */
+    public void metrics()
+    {
+        this.command_skeleton.createContext("/metrics", (exchange ->
+        {
+            MetricsReturn metrics = new MetricsReturn(new MetricsReturn.Skeleton[] {
+                    this.client_admission.metrics(), this.command_admission.metrics()}, peers.metrics());
+            this.sendReturn(exchange, metrics, 200);
+        }));
     }
 
     public void size()
     {
-        this.client_skeleton.createContext("/storage_size", (exchange ->
+        this.client_admission.context(this.client_skeleton, "/storage_size", (exchange ->
         {
             String respText = "";
             int returnCode = 200;
@@ -133,8 +207,7 @@ public class StorageServer {
                 PathRequest pr = null;
                 SizeReturn sr = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    pr = gson.fromJson(isr, PathRequest.class);
+                    pr = this.parse(exchange, PathRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText, returnCode);
                     return;
@@ -150,15 +223,14 @@ public class StorageServer {
                     return;
                 }
                 sr = new SizeReturn(file.length());
-                respText = gson.toJson(sr);
-                this.generateResponseAndClose(exchange, respText, returnCode);
+                this.sendReturn(exchange, sr, returnCode);
             }
         }));
     }
 
     public void read()
     {
-        this.client_skeleton.createContext("/storage_read", (exchange ->
+        this.client_admission.context(this.client_skeleton, "/storage_read", (exchange ->
         {
             String respText = "";
             int returnCode = 200;
@@ -166,8 +238,7 @@ public class StorageServer {
                 ReadRequest rr = null;
                 DataReturn dr = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    rr = gson.fromJson(isr, ReadRequest.class);
+                    rr = this.parse(exchange, ReadRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText,returnCode);
                     return;
@@ -188,8 +259,7 @@ public class StorageServer {
                 }
                 if (file.length() == 0){
                     dr = new DataReturn("");
-                    respText = gson.toJson(dr);
-                    this.generateResponseAndClose(exchange, respText, returnCode);
+                    this.sendReturn(exchange, dr, returnCode);
                     return;
                 }
                 if (offset < 0 || length > file.length() || length < 0 || offset == file.length() ){
@@ -201,27 +271,147 @@ public class StorageServer {
                 RandomAccessFile reader = new RandomAccessFile(file, "r");
                 reader.seek(offset);
                 reader.read(b);
-                String base64String = Base64.getEncoder().encodeToString(b);
                 reader.close();
-                dr = new DataReturn(base64String);
-                respText = gson.toJson(dr);
-                this.generateResponseAndClose(exchange, respText, returnCode);
+                this.sendData(exchange, b, returnCode);
             }
         }));
     }
 
+    /** GET /storage_stream?path=/dir/fileA: the bytes of a file as they are, or of the part of it a Range
+     *  header asks for, sent from the file to the socket without being read into memory */
+    public void stream()
+    {
+        this.client_admission.context(this.client_skeleton, "/storage_stream", (exchange ->
+        {
+            if (!"GET".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "GET");
+                this.generateResponseAndClose(exchange, "The REST method should be GET for <storage_stream>!\n", 405);
+                return;
+            }
+            String path = query_parameter(exchange.getRequestURI().getRawQuery(), "path");
+            if (path == null || path.length() == 0){
+                this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
+                return;
+            }
+            File file = new File(directory, path);
+            if (!file.exists() || file.isDirectory()){
+                this.sendExceptionReturn(exchange, "FileNotFoundException", 404);
+                return;
+            }
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            int code;
+            long position, count;
+            // FileResponse.send closes the channel; until it is called, close it on the way out
+            try {
+                long size = channel.size();
+                exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+                long[] range = byte_range(exchange.getRequestHeaders().getFirst("Range"), size);
+                if (range != null && range.length == 0){
+                    channel.close();
+                    exchange.getResponseHeaders().set("Content-Range", "bytes */" + size);
+                    this.sendExceptionReturn(exchange, "IndexOutOfBoundsException", 416);
+                    return;
+                }
+                exchange.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                if (range == null){
+                    code = 200;
+                    position = 0;
+                    count = size;
+                }else{
+                    code = 206;
+                    position = range[0];
+                    count = range[1] - range[0] + 1;
+                    exchange.getResponseHeaders().set("Content-Range", "bytes " + range[0] + "-" + range[1] + "/" + size);
+                }
+                if (wants_crc32c(exchange))
+                    exchange.getResponseHeaders().set("Digest", "crc32c=" + this.crc32c(channel, position, count));
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            FileResponse.send(exchange, code, channel, position, count);
+        }));
+    }
+
+    /** whether the request asks for the CRC32C of what is sent, with Want-Digest as in RFC 3230 */
+    private static boolean wants_crc32c(HttpExchange exchange) {
+        String want = exchange.getRequestHeaders().getFirst("Want-Digest");
+        return want != null && want.toLowerCase(Locale.ROOT).contains("crc32c");
+    }
+
+    /** the CRC32C of count bytes of channel from position on, in hex; read through a stream buffer, so the
+     *  bytes are in the page cache when they are sent after */
+    private String crc32c(FileChannel channel, long position, long count) throws IOException {
+        CRC32C crc = new CRC32C();
+        ByteBuffer buffer = this.take_stream_buffer();
+        try {
+            while (count > 0) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), count));
+                int n = channel.read(buffer, position);
+                if (n < 0) throw new EOFException("file truncated while summed");
+                buffer.flip();
+                crc.update(buffer);
+                position += n;
+                count -= n;
+            }
+        } finally {
+            this.give_stream_buffer(buffer);
+        }
+        return String.format("%08x", crc.getValue());
+    }
+
+    /** the first and last byte a Range header asks for in a file of size bytes; null to send the whole
+     *  file, for no header or one that is not a single byte range, and an empty array when the range lies
+     *  past the end of the file */
+    private static long[] byte_range(String header, long size) {
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') >= 0) return null;
+        String spec = header.substring("bytes=".length()).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        long first, last;
+        try {
+            if (dash == 0) {
+                // the last n bytes
+                long n = Long.parseLong(spec.substring(1));
+                if (n == 0) return new long[0];
+                first = Math.max(0, size - n);
+                last = size - 1;
+            } else {
+                first = Long.parseLong(spec.substring(0, dash));
+                last = dash == spec.length() - 1 ? size - 1 : Long.parseLong(spec.substring(dash + 1));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        if (first >= size) return new long[0];
+        if (last < first) return null;
+        return new long[] {first, Math.min(last, size - 1)};
+    }
+
+    /** the decoded value of name in a raw query string, or null */
+    private static String query_parameter(String query, String name) {
+        if (query == null) return null;
+        for (String pair : query.split("&")) {
+            int eq = pair.indexOf('=');
+            if (eq > 0 && pair.substring(0, eq).equals(name))
+                return URLDecoder.decode(pair.substring(eq + 1), StandardCharsets.UTF_8);
+        }
+        return null;
+    }
+
     public void write()
     {
-        this.client_skeleton.createContext("/storage_write", (exchange ->
+        this.client_admission.context(this.client_skeleton, "/storage_write", (exchange ->
         {
             String respText = "";
             int returnCode = 200;
             if ("POST".equals(exchange.getRequestMethod())) {
                 WriteRequest wr = null;
                 BooleanReturn br = null;
+                // the data of a binary request, left out of wr
+                Map<String, byte[]> raw = new HashMap<>();
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    wr = gson.fromJson(isr, WriteRequest.class);
+                    wr = this.parse(exchange, WriteRequest.class, raw);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText, returnCode);
                     return;
@@ -246,27 +436,101 @@ public class StorageServer {
                 // use what the Internet told me
                 RandomAccessFile writer = new RandomAccessFile(file, "rw");
                 writer.seek(offset);
-                byte[] b = Base64.getDecoder().decode(data);
+                byte[] b = raw.containsKey("data") ? raw.get("data") : Base64.getDecoder().decode(data);
                 writer.write(b);
                 writer.close();
                 br = new BooleanReturn(true);
-                respText = gson.toJson(br);
-                this.generateResponseAndClose(exchange, respText, returnCode);
+                this.sendReturn(exchange, br, returnCode);
+            }
+        }));
+    }
+
+    /** POST /storage_write_stream?path=/dir/fileA&offset=0: write the body to the file as it arrives,
+     *  raw or, with encoding=base64, in Base64, through one buffer of STREAM_BUFFER bytes */
+    public void write_stream()
+    {
+        this.client_admission.context(this.client_skeleton, "/storage_write_stream", (exchange ->
+        {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                exchange.getResponseHeaders().set("Allow", "POST");
+                this.generateResponseAndClose(exchange, "The REST method should be POST for <storage_write_stream>!\n", 405);
+                return;
             }
+            String query = exchange.getRequestURI().getRawQuery();
+            String path = query_parameter(query, "path");
+            String encoding = query_parameter(query, "encoding");
+            long offset;
+            try {
+                String o = query_parameter(query, "offset");
+                offset = o == null ? 0 : Long.parseLong(o);
+            } catch (NumberFormatException e) {
+                this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
+                return;
+            }
+            if (path == null || path.length() == 0 || (encoding != null && !encoding.equals("base64"))){
+                this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
+                return;
+            }
+            if (offset < 0){
+                this.sendExceptionReturn(exchange, "IndexOutOfBoundsException", 400);
+                return;
+            }
+            File file = new File(directory, path);
+            if (!file.exists() || file.isDirectory()){
+                this.sendExceptionReturn(exchange, "FileNotFoundException", 404);
+                return;
+            }
+            InputStream body = exchange.getRequestBody();
+            // the decoder reads a byte at a time from what it wraps
+            if (encoding != null) body = Base64.getDecoder().wrap(new BufferedInputStream(body));
+            ByteBuffer buffer = this.take_stream_buffer();
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+                ReadableByteChannel in = Channels.newChannel(body);
+                long position = offset;
+                while (in.read(buffer) >= 0) {
+                    // write only full buffers, the rest at the end
+                    if (!buffer.hasRemaining()) position = drain_to(buffer, channel, position);
+                }
+                drain_to(buffer, channel, position);
+            } catch (IOException e) {
+                // the body broke off or was not Base64; what came before it is written
+                this.sendExceptionReturn(exchange, "IOException", 400);
+                return;
+            } finally {
+                this.give_stream_buffer(buffer);
+            }
+            this.sendBooleanReturn(exchange, true, 200);
         }));
     }
 
+    /** write the bytes in buffer to channel at position and empty it; returns the position after them */
+    private static long drain_to(ByteBuffer buffer, FileChannel channel, long position) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) position += channel.write(buffer, position);
+        buffer.clear();
+        return position;
+    }
+
+    private ByteBuffer take_stream_buffer() {
+        ByteBuffer buffer = stream_buffers.poll();
+        return buffer != null ? buffer : ByteBuffer.allocateDirect(STREAM_BUFFER);
+    }
+
+    private void give_stream_buffer(ByteBuffer buffer) {
+        buffer.clear();
+        stream_buffers.add(buffer);
+    }
+
     public void create()
     {
-        this.command_skeleton.createContext("/storage_create", (exchange ->
+        this.command_admission.context(this.command_skeleton, "/storage_create", (exchange ->
         {
             String respText = "";
             int returnCode = 200;
             if ("POST".equals(exchange.getRequestMethod())) {
                 PathRequest pr = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    pr = gson.fromJson(isr, PathRequest.class);
+                    pr = this.parse(exchange, PathRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText, returnCode);
                     return;
@@ -296,7 +560,7 @@ public class StorageServer {
 
     public void delete()
     {
-        this.command_skeleton.createContext("/storage_delete", (exchange ->
+        this.command_admission.context(this.command_skeleton, "/storage_delete", (exchange ->
         {
             String respText = "";
             int returnCode = 200;
@@ -305,8 +569,7 @@ public class StorageServer {
                 ExceptionReturn er = null;
                 BooleanReturn br = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    pr = gson.fromJson(isr, PathRequest.class);
+                    pr = this.parse(exchange, PathRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText, returnCode);
                     return;
@@ -338,7 +601,7 @@ public class StorageServer {
 
     public void copy()
     {
-        this.command_skeleton.createContext("/storage_copy", (exchange ->
+        this.command_admission.context(this.command_skeleton, "/storage_copy", (exchange ->
         {
             String respText = "";
             int returnCode = 200;
@@ -347,8 +610,7 @@ public class StorageServer {
                 ExceptionReturn er = null;
                 BooleanReturn br = null;
                 try {
-                    InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
-                    cr = gson.fromJson(isr, CopyRequest.class);
+                    cr = this.parse(exchange, CopyRequest.class);
                 } catch (Exception e) {
                     this.sendNotPostRequestReturn(exchange, respText, returnCode);
                     return;
@@ -356,7 +618,7 @@ public class StorageServer {
                 String path = cr.path;
                 String ip = cr.server_ip;
                 int port = cr.server_port;
-                if (path.equals("")){
+                if (path.equals("") || path.contains(":")){
                     this.sendExceptionReturn(exchange, "IllegalArgumentException", 400);
                     return;
                 }
@@ -364,7 +626,7 @@ public class StorageServer {
                 long size = 0;
                 PathRequest pr = new PathRequest(path);
                 try{
-                    HttpResponse<String> response = this.getResponse(ip, port, "/storage_size", pr);
+                    PeerClient.Response response = this.getResponse(ip, port, "/storage_size", pr);
                     if (gson.fromJson(response.body(), ExceptionReturn.class).exception_type != null){
                         this.sendExceptionReturn(exchange, "FileNotFoundException", 400);
                         return;
@@ -372,18 +634,8 @@ public class StorageServer {
                     size = gson.fromJson(response.body(), SizeReturn.class).size;
                 }catch(Exception e){
                     System.out.println(e.getMessage());
-                }
-                ReadRequest rr = new ReadRequest(path, 0, (int) size);
-                String data = "";
-                try{
-                    HttpResponse<String> response2 = this.getResponse(ip, port, "/storage_read", rr);
-                    if (gson.fromJson(response2.body(), ExceptionReturn.class).exception_type != null){
-                        this.sendExceptionReturn(exchange, "FileNotFoundException", 400);
-                        return;
-                    }
-                    data = gson.fromJson(response2.body(), DataReturn.class).data;
-                }catch(Exception e){
-                    System.out.println(e.getMessage());
+                    this.sendExceptionReturn(exchange, "IOException", 400);
+                    return;
                 }
                 // 一开始不对的原因是因为没有理解对 nonexistent file 和 dir不存在说的是
                 // 说的是hosting file的那个server上的 而不是当前这个的！
@@ -391,50 +643,124 @@ public class StorageServer {
                 if (!file.exists()){
                     String[] components = eliminate_spaces(path);
                     String create_path = ROOT_DIR;
-                    // making new dir and new files
-                    for (int i = 0 ; i < components.length; i++){
+                    // making the new dirs; the file itself is moved into place once it is copied
+                    for (int i = 0 ; i < components.length - 1; i++){
                         create_path += ("/" + components[i]);
-                        File newFile = new File(create_path);
-                        if (i != components.length - 1) newFile.mkdir();
-                        else newFile.createNewFile();
+                        new File(create_path).mkdir();
                     }
                 }
-                RandomAccessFile writer = new RandomAccessFile(file, "rw");
-                // 这个地方要刷新 抹掉之前的所有内容 方法就是setlength = 0，要不然之前的data
-                // 会被往后挤。之前的文件写完了，length就固定了，没法改了！
-                writer.setLength(0);
-                writer.seek(0);
-                byte[] b = Base64.getDecoder().decode(data);
-                writer.write(b);
-                writer.close();
+                try{
+                    this.fetch(ip, port, path, size, file);
+                }catch(IOException e){
+                    System.out.println(e.getMessage());
+                    this.sendExceptionReturn(exchange, "IOException", 400);
+                    return;
+                }
                 this.sendBooleanReturn(exchange, true, returnCode);
             }
         }));
     }
 
-    protected HttpResponse<String> getResponse(String ip, int port, String api, Object obj) throws IOException,
+    /** copy the file at path on ip:port, size bytes long, to file. It comes in chunks of COPY_CHUNK bytes,
+     *  COPY_IN_FLIGHT of them requested at a time, and each is checked against the CRC32C the source sent
+     *  with it and written while the chunks after it are on their way. The copy goes to a temporary file
+     *  beside file that replaces it only when complete: readers never see half a copy, and a failed copy
+     *  leaves file as it was. */
+    private void fetch(String ip, int port, String path, long size, File file) throws IOException {
+        String api = "/storage_stream?path=" + URLEncoder.encode(path, StandardCharsets.UTF_8);
+        long chunks = (size + COPY_CHUNK - 1) / COPY_CHUNK;
+        long next = 0;
+        ArrayDeque<CompletableFuture<byte[]>> window = new ArrayDeque<>();
+        // created like any other file, for the permissions the copy keeps
+        java.nio.file.Path partial = Files.createFile(file.getParentFile().toPath().resolve(
+                "." + file.getName() + ":" + copies.incrementAndGet() + PARTIAL_SUFFIX));
+        try (FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            for (; next < chunks && next < COPY_IN_FLIGHT; next++) window.add(this.fetch_chunk(ip, port, api, next, size));
+            long position = 0;
+            while (!window.isEmpty()) {
+                byte[] chunk = await(window.poll());
+                // keep COPY_IN_FLIGHT requests going while this chunk is written
+                if (next < chunks) window.add(this.fetch_chunk(ip, port, api, next++, size));
+                ByteBuffer buffer = ByteBuffer.wrap(chunk);
+                while (buffer.hasRemaining()) position += out.write(buffer, position);
+            }
+            out.force(false);
+        } catch (IOException e) {
+            for (CompletableFuture<byte[]> pending : window) pending.cancel(false);
+            Files.deleteIfExists(partial);
+            throw e;
+        }
+        Files.move(partial, file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /** request chunk i of a file of size bytes and check it, trying COPY_ATTEMPTS times */
+    private CompletableFuture<byte[]> fetch_chunk(String ip, int port, String api, long i, long size) {
+        long first = i * COPY_CHUNK;
+        long count = Math.min(COPY_CHUNK, size - first);
+        return CompletableFuture.supplyAsync(() -> {
+            IOException failure = null;
+            for (int attempt = 0; attempt < COPY_ATTEMPTS; attempt++) {
+                try {
+                    PeerClient.Response response = peers.get(ip, port, api,
+                            "Range: bytes=" + first + "-" + (first + count - 1), "Want-Digest: crc32c");
+                    byte[] bytes = response.bytes();
+                    if (response.statusCode() != 206 || bytes.length != count)
+                        throw new IOException("chunk at " + first + ": status " + response.statusCode() + ", "
+                                + bytes.length + " of " + count + " bytes");
+                    CRC32C crc = new CRC32C();
+                    crc.update(bytes);
+                    String expected = "crc32c=" + String.format("%08x", crc.getValue());
+                    if (!expected.equalsIgnoreCase(response.header("Digest")))
+                        throw new IOException("chunk at " + first + ": checksum " + response.header("Digest")
+                                + ", received " + expected);
+                    return bytes;
+                } catch (IOException e) {
+                    failure = e;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new CompletionException(e);
+                }
+            }
+            throw new CompletionException(failure);
+        }, copy_fetchers);
+    }
+
+    /** the result of a chunk fetch, or the IOException it failed with */
+    private static byte[] await(CompletableFuture<byte[]> chunk) throws IOException {
+        try {
+            return chunk.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /** delete the temporary files of copies a previous run did not finish. Only names with the ':' that
+     *  fetch() gives them are matched, so client files are kept whatever they are called */
+    private static void remove_partial_copies(File dir) {
+        File[] files = dir.listFiles();
+        if (files == null) return;
+        for (File each : files){
+            if (each.isDirectory()) remove_partial_copies(each);
+            else if (PARTIAL_NAME.matcher(each.getName()).matches()) each.delete();
+        }
+    }
+
+    protected PeerClient.Response getResponse(String ip, int port, String api, Object obj) throws IOException,
             InterruptedException{
-        HttpClient client = HttpClient.newHttpClient();
-        HttpRequest request = HttpRequest.newBuilder()
-                .uri(URI.create("http://" + ip + ":" + port + api))
-                .setHeader("Content-Type", "application/json")
-                .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(obj)))
-                .build();
-        return client.send(request, HttpResponse.BodyHandlers.ofString());
+        return peers.post(ip, port, api, gson.toJson(obj));
     }
 
     protected void sendBooleanReturn(HttpExchange exchange, boolean success, int returnCode) throws IOException
     {
         BooleanReturn booleanReturn = new BooleanReturn(success);
-        String respText = gson.toJson(booleanReturn);
-        this.generateResponseAndClose(exchange, respText, returnCode);
+        this.sendReturn(exchange, booleanReturn, returnCode);
     }
 
     protected void sendExceptionReturn(HttpExchange exchange, String exception_type, int returnCode)
             throws IOException{
         ExceptionReturn er = new ExceptionReturn(exception_type, "");
-        String respText = gson.toJson(er);
-        this.generateResponseAndClose(exchange, respText, returnCode);
+        this.sendReturn(exchange, er, returnCode);
     }
 
     protected void sendNotPostRequestReturn(HttpExchange exchange, String respText, int returnCode)
@@ -443,14 +769,54 @@ public class StorageServer {
         returnCode = 400;
         this.generateResponseAndClose(exchange, respText, returnCode);
     }
+    /** read the request body as a message of type, in binary if its Content-Type says so and in json otherwise */
+    private <T> T parse(HttpExchange exchange, Class<T> type) throws IOException {
+        return this.parse(exchange, type, null);
+    }
+
+    /** like parse(exchange, type), but the Raw fields of a binary request go to raw as bytes */
+    private <T> T parse(HttpExchange exchange, Class<T> type, Map<String, byte[]> raw) throws IOException {
+        if (Binary.wanted(exchange.getRequestHeaders().getFirst("Content-Type")))
+            return Binary.decode(exchange.getRequestBody(),
+                    Binary.length(exchange.getRequestHeaders().getFirst("Content-Length")), type, raw);
+        InputStreamReader isr = new InputStreamReader(exchange.getRequestBody(), "utf-8");
+        return gson.fromJson(isr, type);
+    }
+
+    /** answer a read with the bytes b: as they are in binary, in Base64 in json */
+    private void sendData(HttpExchange exchange, byte[] b, int returnCode) throws IOException {
+        if (Binary.wanted(exchange.getRequestHeaders().getFirst("Accept"))){
+            exchange.getResponseHeaders().set("Content-Type", Binary.CONTENT_TYPE);
+            byte[] resp = Binary.encode(new DataReturn(null), Collections.singletonMap("data", b));
+            this.generateResponseAndClose(exchange, resp, returnCode);
+            return;
+        }
+        this.sendReturn(exchange, new DataReturn(Base64.getEncoder().encodeToString(b)), returnCode);
+    }
+
+    /** answer with message, in binary if the client accepts it and in json otherwise */
+    private void sendReturn(HttpExchange exchange, Object message, int returnCode) throws IOException {
+        if (Binary.wanted(exchange.getRequestHeaders().getFirst("Accept"))){
+            exchange.getResponseHeaders().set("Content-Type", Binary.CONTENT_TYPE);
+            this.generateResponseAndClose(exchange, Binary.encode(message), returnCode);
+            return;
+        }
+        this.generateResponseAndClose(exchange, gson.toJson(message), returnCode);
+    }
+
     /**
      * call this function when you want to write to response and close the connection.
      */
     private void generateResponseAndClose(HttpExchange exchange, String respText, int returnCode)
             throws IOException {
-        exchange.sendResponseHeaders(returnCode, respText.getBytes().length);
+        this.generateResponseAndClose(exchange, respText.getBytes(), returnCode);
+    }
+
+    private void generateResponseAndClose(HttpExchange exchange, byte[] resp, int returnCode)
+            throws IOException {
+        exchange.sendResponseHeaders(returnCode, resp.length);
         OutputStream output = exchange.getResponseBody();
-        output.write(respText.getBytes());
+        output.write(resp);
         output.flush();
         exchange.close();
     }
@@ -506,14 +872,20 @@ public class StorageServer {
     }
 
     public static void main(String[] args) throws FileNotFoundException {
-        if (args.length != 4){
-            System.out.println("Proper Usage is: java storage.StorageServer port port port directoryAddr");
+        // options come first as --name=value, then the positional arguments
+        List<String> positional = new ArrayList<>();
+        for (String arg : args){
+            if (!Admission.configure(arg) && !Skeleton.configure(arg)) positional.add(arg);
+        }
+        if (positional.size() != 4){
+            System.out.println("Proper Usage is: java storage.StorageServer " + Admission.usage("client", "command")
+                    + " " + Skeleton.usage() + " port port port directoryAddr");
             System.exit(0);
         }
-        CLIENT_PORT = Integer.parseInt(args[0]);
-        COMMAND_PORT = Integer.parseInt(args[1]);
-        REGISTRATION_PORT = Integer.parseInt(args[2]);
-        ROOT_DIR = args[3];
+        CLIENT_PORT = Integer.parseInt(positional.get(0));
+        COMMAND_PORT = Integer.parseInt(positional.get(1));
+        REGISTRATION_PORT = Integer.parseInt(positional.get(2));
+        ROOT_DIR = positional.get(3);
         // using for debug purpose
         PrintStream debug_file = new PrintStream(new FileOutputStream("debug_storage.txt", true));
         System.setOut(debug_file);
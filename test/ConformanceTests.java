@@ -23,6 +23,8 @@ public class ConformanceTests
                         test.naming.StubRetrievalTest.class,
                         test.naming.LockTest.class,
                         test.naming.QueueTest.class,
+                        test.naming.LeaseTest.class,
+                        test.naming.DeadlockTest.class,
                         test.naming.ReplicationTest.class,
                         test.naming.DeletionTest.class,
                         test.storage.RegistrationTest.class,
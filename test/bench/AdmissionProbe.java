@@ -0,0 +1,104 @@
+package test.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import server.Admission;
+
+/** Measures 10,000 requests that arrive at once at a skeleton's Admission and each block for 100 ms,
+    as handlers do on disk I/O, the namespace log or another server, in both thread modes. The platform
+    pool runs 200 of them at a time and queues the rest; with --threads=virtual every request gets a
+    virtual thread of its own and the Semaphore admits all of them. Both are sized to admit every
+    request: 200 workers and a queue of 10,000. Printed are the time until the last request finished,
+    the median and 99th percentile of the time from arrival to the end of a request, the most platform
+    threads alive at once (virtual threads are not counted, only their carriers) and the heap in use
+    once all requests are in.
+
+    <p>
+    Virtual threads need Java 21; on older JDKs only the platform pool is measured. Run from the
+    directory of the compiled classes: <code>java -cp .:gson-2.8.6.jar test.bench.AdmissionProbe</code>.
+ */
+public class AdmissionProbe
+{
+    private static final int REQUESTS = 10_000;
+    private static final long BLOCK_MS = 100;
+    private static final int WORKERS = 200;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+    public static void main(String[] arguments) throws InterruptedException
+    {
+        Admission.configure("--probe-workers=" + WORKERS);
+        Admission.configure("--probe-queue=" + REQUESTS);
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors, " + REQUESTS
+                + " requests of " + BLOCK_MS + " ms");
+        System.out.println("mode          total s    p50 ms    p99 ms   rejected   threads    heap MB");
+        for (String mode : new String[] {"platform", "virtual"})
+        {
+            Admission.configure("--threads=" + mode);
+            Admission admission;
+            try
+            {
+                admission = new Admission("probe", WORKERS, REQUESTS);
+            }
+            catch (UnsupportedOperationException e)
+            {
+                System.out.printf("%-8s %s%n", mode, e.getMessage());
+                continue;
+            }
+            // the first round warms up, and starts the carrier threads of the virtual mode
+            run(admission);
+            System.out.printf("%-8s %s%n", mode, run(admission));
+        }
+        System.exit(0);
+    }
+
+    /** one round of REQUESTS requests through admission, as a line of the table */
+    private static String run(Admission admission) throws InterruptedException
+    {
+        long[] latency = new long[REQUESTS];
+        CountDownLatch done = new CountDownLatch(REQUESTS);
+        AtomicInteger rejected = new AtomicInteger();
+        Thread caller = Thread.currentThread();
+        System.gc();
+        long heap_before = used_heap();
+        THREADS.resetPeakThreadCount();
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++)
+        {
+            int request = i;
+            long arrived = System.nanoTime();
+            admission.execute(() -> {
+                // a request that was not admitted runs on the caller, where it would be answered 503
+                if (Thread.currentThread() == caller) rejected.incrementAndGet();
+                else
+                {
+                    try
+                    {
+                        Thread.sleep(BLOCK_MS);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                latency[request] = System.nanoTime() - arrived;
+                done.countDown();
+            });
+        }
+        long heap = used_heap() - heap_before;
+        done.await();
+        double total = (System.nanoTime() - start) / 1e9;
+        Arrays.sort(latency);
+        return String.format("%12.2f %9.0f %9.0f %10d %9d %10.1f", total, latency[REQUESTS / 2] / 1e6,
+                latency[REQUESTS * 99 / 100] / 1e6, rejected.get(), THREADS.getPeakThreadCount(),
+                heap / (double) (1 << 20));
+    }
+
+    private static long used_heap()
+    {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+}
@@ -0,0 +1,167 @@
+package test.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
+import naming.RWLock;
+
+/** Measures one hot lock that many threads queue for: naming.RWLock, which hands the lock over to the
+    next waiters and wakes only them, against the monitor lock it replaced (MonitorRWLock), whose every
+    unlock wakes every waiter, a fair ReentrantReadWriteLock and a StampedLock. Each thread takes the
+    lock, does a little work holding it and lets go, in a loop; either all of them take it exclusive,
+    or one in ten does and the others take it shared. Printed are the rounds per second and the
+    longest a single lock() call waited, in milliseconds.
+
+    <p>
+    Run from the directory of the compiled classes: <code>java -cp .:gson-2.8.6.jar test.bench.HandoffProbe</code>.
+ */
+public class HandoffProbe
+{
+    private static final int[] THREADS = {16, 64, 256};
+    private static final long RUN_MS = 2_000;
+    /** iterations of the work done holding the lock */
+    private static final int WORK = 200;
+
+    private static volatile boolean running;
+    private static volatile long sink;
+
+    /** one of the locks measured, in shared or exclusive mode */
+    private interface Lock
+    {
+        void lock(boolean exclusive) throws InterruptedException;
+
+        void unlock(boolean exclusive);
+    }
+
+    private static Lock queued()
+    {
+        RWLock lock = new RWLock();
+        return new Lock()
+        {
+            public void lock(boolean exclusive) throws InterruptedException
+            {
+                lock.lock(exclusive ? RWLock.X : RWLock.S);
+            }
+
+            public void unlock(boolean exclusive)
+            {
+                lock.unlock(exclusive ? RWLock.X : RWLock.S);
+            }
+        };
+    }
+
+    private static Lock monitor()
+    {
+        MonitorRWLock lock = new MonitorRWLock();
+        return new Lock()
+        {
+            public void lock(boolean exclusive) throws InterruptedException
+            {
+                if (exclusive) lock.lockExclusive();
+                else lock.lockShared();
+            }
+
+            public void unlock(boolean exclusive)
+            {
+                if (exclusive) lock.unlockExclusive();
+                else lock.unlockShared();
+            }
+        };
+    }
+
+    private static Lock of(ReadWriteLock lock)
+    {
+        return new Lock()
+        {
+            public void lock(boolean exclusive)
+            {
+                (exclusive ? lock.writeLock() : lock.readLock()).lock();
+            }
+
+            public void unlock(boolean exclusive)
+            {
+                (exclusive ? lock.writeLock() : lock.readLock()).unlock();
+            }
+        };
+    }
+
+    public static void main(String[] arguments) throws InterruptedException
+    {
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors");
+        // warm every lock up once
+        for (int writers : new int[] {1, 10})
+        {
+            run(queued(), 16, writers);
+            run(monitor(), 16, writers);
+            run(of(new ReentrantReadWriteLock(true)), 16, writers);
+            run(of(new StampedLock().asReadWriteLock()), 16, writers);
+        }
+        System.out.println("workload     threads          RWLock           monitor         fair RRWL"
+                + "           Stamped   (rounds per second, longest wait ms)");
+        for (int writers : new int[] {1, 10})
+        {
+            for (int threads : THREADS)
+            {
+                double[][] results = {run(queued(), threads, writers), run(monitor(), threads, writers),
+                        run(of(new ReentrantReadWriteLock(true)), threads, writers),
+                        run(of(new StampedLock().asReadWriteLock()), threads, writers)};
+                System.out.printf("%-12s %7d", writers == 1 ? "exclusive" : "10% writers", threads);
+                for (double[] r : results) System.out.printf(" %9.0f %7.1f", r[0], r[1]);
+                System.out.println();
+            }
+        }
+    }
+
+    /** rounds per second of threads threads on lock, one round in writers taking it exclusive, and the
+     *  longest wait of a round in milliseconds */
+    private static double[] run(Lock lock, int threads, int writers) throws InterruptedException
+    {
+        AtomicLong done = new AtomicLong();
+        AtomicLong longest = new AtomicLong();
+        running = true;
+        Thread[] all = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            all[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long n = 0;
+                long x = 0;
+                long max = 0;
+                try
+                {
+                    while (running)
+                    {
+                        boolean exclusive = random.nextInt(writers) == 0;
+                        long asked = System.nanoTime();
+                        lock.lock(exclusive);
+                        max = Math.max(max, System.nanoTime() - asked);
+                        try
+                        {
+                            for (int w = 0; w < WORK; w++) x = x * 31 + w;
+                        }
+                        finally
+                        {
+                            lock.unlock(exclusive);
+                        }
+                        n++;
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                sink = x;
+                done.addAndGet(n);
+                longest.accumulateAndGet(max, Math::max);
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : all) t.start();
+        Thread.sleep(RUN_MS);
+        running = false;
+        for (Thread t : all) t.join();
+        return new double[] {done.get() / ((System.nanoTime() - start) / 1e9), longest.get() / 1e6};
+    }
+}
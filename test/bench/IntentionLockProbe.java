@@ -0,0 +1,110 @@
+package test.bench;
+
+import java.util.concurrent.atomic.AtomicLong;
+import naming.RWLock;
+
+/** Measures 64 threads that each lock a file of their own in the same directory, /dir/file_i, then
+    unlock it, over and over. With intention locks a thread takes IS on / and /dir and X on its file, as
+    /lock does through NamingServer.mode_along_the_path, all on the compare-and-set fast path, and the
+    threads never wait for each other. With the scheme
+    they replace, every thread takes the monitor lock of / and of /dir shared and its file exclusive,
+    so all of them go through the same two monitors.
+
+    <p>
+    Run from the directory of the compiled classes: <code>java -cp .:gson-2.8.6.jar test.bench.IntentionLockProbe</code>.
+ */
+public class IntentionLockProbe
+{
+    private static final int THREADS = 64;
+    private static final long RUN_MS = 3_000;
+
+    private static volatile boolean running;
+
+    public static void main(String[] arguments) throws InterruptedException
+    {
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors, " + THREADS + " threads");
+        // the first round of each warms it up
+        intention();
+        monitor();
+        System.out.printf("intention locks %12.0f locks/s%n", intention());
+        System.out.printf("monitor locks   %12.0f locks/s%n", monitor());
+    }
+
+    private static double intention() throws InterruptedException
+    {
+        RWLock root = new RWLock();
+        RWLock dir = new RWLock();
+        return run(i -> {
+            RWLock file = new RWLock();
+            return () -> {
+                root.lock(RWLock.IS);
+                dir.lock(RWLock.IS);
+                file.lock(RWLock.X);
+                file.unlock(RWLock.X);
+                dir.unlock(RWLock.IS);
+                root.unlock(RWLock.IS);
+            };
+        });
+    }
+
+    private static double monitor() throws InterruptedException
+    {
+        MonitorRWLock root = new MonitorRWLock();
+        MonitorRWLock dir = new MonitorRWLock();
+        return run(i -> {
+            MonitorRWLock file = new MonitorRWLock();
+            return () -> {
+                root.lockShared();
+                dir.lockShared();
+                file.lockExclusive();
+                file.unlockExclusive();
+                dir.unlockShared();
+                root.unlockShared();
+            };
+        });
+    }
+
+    private interface Step
+    {
+        void run() throws InterruptedException;
+    }
+
+    private interface Steps
+    {
+        Step of(int thread);
+    }
+
+    /** rounds of locking and unlocking per second of THREADS threads, thread i repeating steps.of(i) */
+    private static double run(Steps steps) throws InterruptedException
+    {
+        AtomicLong done = new AtomicLong();
+        running = true;
+        Thread[] threads = new Thread[THREADS];
+        for (int i = 0; i < THREADS; i++)
+        {
+            Step step = steps.of(i);
+            threads[i] = new Thread(() -> {
+                long n = 0;
+                try
+                {
+                    while (running)
+                    {
+                        step.run();
+                        n++;
+                    }
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                done.addAndGet(n);
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : threads) t.start();
+        Thread.sleep(RUN_MS);
+        running = false;
+        for (Thread t : threads) t.join();
+        return done.get() / ((System.nanoTime() - start) / 1e9);
+    }
+}
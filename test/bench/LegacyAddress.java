@@ -0,0 +1,36 @@
+package test.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import naming.StorageInfo;
+
+/** A node of the namespace tree as it was laid out before naming.Address was made compact, kept to
+    compare its heap against: the absolute path of every node as a String, a list of children that
+    every node allocates, the hosting server by reference and a list of replica servers allocated for
+    every node whether it is ever replicated or not. Only what the fields cost is kept, not the
+    operations.
+ */
+class LegacyAddress
+{
+    private final List<LegacyAddress> children = new ArrayList<>();
+    private final String path;
+    private final boolean isDir;
+    private final StorageInfo si;
+    private int accessNum;
+    private final List<StorageInfo> replicaServers = new ArrayList<>();
+
+    LegacyAddress(String path, boolean isDir, StorageInfo si)
+    {
+        this.path = path;
+        this.isDir = isDir;
+        this.si = si;
+    }
+
+    /** add a child called name, the way add() built the path of a new node from its parent's */
+    LegacyAddress add(String name, boolean isDir, StorageInfo si)
+    {
+        LegacyAddress child = new LegacyAddress(path + "/" + name, isDir, si);
+        children.add(child);
+        return child;
+    }
+}
@@ -0,0 +1,95 @@
+package test.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import naming.HeapNamespace;
+import naming.Namespace;
+import naming.StorageInfo;
+
+/** Measures the heap the namespace tree retains per file: the used heap after a full collection once
+    n files are in the tree, less the used heap before, divided by n. The heap backend as the naming
+    server uses it is measured against the node layout it replaced (LegacyAddress), on a shallow tree,
+    /setNNN/file_NNNNNN, and a deep one, /setNNN/part/2024/q1/region/file_NNNNNN, a thousand files per
+    directory in both. Directories are counted in the heap of their files.
+
+    <p>
+    The heap tree is one per process, so each run of the heap backend goes under a top directory of
+    its own and the earlier ones stay in the baseline of the later ones. Start the JVM with a heap
+    large enough for the legacy layout of the largest run, for example -Xmx2g.
+
+    <p>
+    Run from the directory of the compiled classes: <code>java -Xmx2g -cp .:gson-2.8.6.jar test.bench.MemoryProbe</code>.
+ */
+public class MemoryProbe
+{
+    private static final int FILES = 500_000;
+    private static final int PER_DIRECTORY = 1_000;
+
+    private static final MemoryMXBean MEMORY = ManagementFactory.getMemoryMXBean();
+    /** keeps the tree being measured reachable through the last collection */
+    private static Object retained;
+
+    public static void main(String[] arguments)
+    {
+        StorageInfo si = new StorageInfo("127.0.0.1", 7000, 7001);
+        System.out.println("tree       files       legacy         heap    ratio   (bytes per file)");
+        for (String[] layout : new String[][] {{"shallow", ""}, {"deep", "/part/2024/q1/region"}})
+        {
+            double legacy = legacy(layout[1], si);
+            double heap = heap(layout[0], layout[1], si);
+            System.out.printf("%-8s %7d %12.1f %12.1f %8.2f%n", layout[0], FILES, legacy, heap, legacy / heap);
+        }
+    }
+
+    /** the directory that file i goes in, under top */
+    private static String directory(String top, String below, int i)
+    {
+        return top + "/set" + (i / PER_DIRECTORY) + below;
+    }
+
+    private static double heap(String name, String below, StorageInfo si)
+    {
+        Namespace namespace = new HeapNamespace();
+        String top = "/memory-" + name;
+        long before = used();
+        for (int i = 0; i < FILES; i++) namespace.add(directory(top, below, i) + "/file_" + i, si);
+        retained = namespace.root();
+        return (used() - before) / (double) FILES;
+    }
+
+    private static double legacy(String below, StorageInfo si)
+    {
+        long before = used();
+        LegacyAddress root = new LegacyAddress("", true, null);
+        LegacyAddress dir = null;
+        for (int i = 0; i < FILES; i++)
+        {
+            if (i % PER_DIRECTORY == 0)
+            {
+                dir = root.add("set" + (i / PER_DIRECTORY), true, si);
+                for (String each : below.split("/"))
+                {
+                    if (!each.isEmpty()) dir = dir.add(each, true, si);
+                }
+            }
+            dir.add("file_" + i, false, si);
+        }
+        retained = root;
+        long after = used();
+        retained = null;
+        return (after - before) / (double) FILES;
+    }
+
+    /** used heap in bytes after collecting everything unreachable */
+    private static long used()
+    {
+        long used = Long.MAX_VALUE;
+        // a collection can leave garbage that finalization or reference processing frees the next one
+        for (int i = 0; i < 4; i++)
+        {
+            System.gc();
+            used = Math.min(used, MEMORY.getHeapMemoryUsage().getUsed());
+        }
+        return used;
+    }
+}
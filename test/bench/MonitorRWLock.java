@@ -0,0 +1,38 @@
+package test.bench;
+
+/** The namespace lock as it was before naming.RWLock had intention modes and a queue, kept to compare
+    against: shared and exclusive only, every call synchronized, and every unlock waking every waiter
+    with notifyAll(). A queued writer still blocks later readers.
+ */
+class MonitorRWLock
+{
+    private int readers;
+    private int writers_waiting;
+    private boolean writing;
+
+    synchronized void lockShared() throws InterruptedException
+    {
+        while (writers_waiting > 0 || writing) wait();
+        readers++;
+    }
+
+    synchronized void lockExclusive() throws InterruptedException
+    {
+        writers_waiting++;
+        while (readers > 0 || writing) wait();
+        writers_waiting--;
+        writing = true;
+    }
+
+    synchronized void unlockShared()
+    {
+        readers--;
+        notifyAll();
+    }
+
+    synchronized void unlockExclusive()
+    {
+        writing = false;
+        notifyAll();
+    }
+}
@@ -0,0 +1,46 @@
+package test.bench;
+
+import naming.HeapNamespace;
+import naming.Namespace;
+import naming.OffHeapNamespace;
+import naming.StorageInfo;
+
+/** Times the namespace backends on one wide directory: n files inserted into it, then each looked up
+    once and the directory listed once, for n from 20k to 1M.
+
+    <p>
+    Run from the directory of the compiled classes: <code>java -cp .:gson-2.8.6.jar test.bench.NamespaceProbe</code>.
+ */
+public class NamespaceProbe
+{
+    private static final int[] SIZES = {20_000, 100_000, 200_000, 1_000_000};
+
+    public static void main(String[] arguments)
+    {
+        StorageInfo si = new StorageInfo("127.0.0.1", 7000, 7001);
+        System.out.println("backend    files      insert    lookup      list");
+        for (int n : SIZES)
+        {
+            probe("heap", new HeapNamespace(), n, si);
+            probe("off-heap", new OffHeapNamespace(), n, si);
+        }
+    }
+
+    private static void probe(String backend, Namespace namespace, int n, StorageInfo si)
+    {
+        // the heap tree is one per process: every run gets a directory of its own
+        Object dir = namespace.insert(namespace.root(), backend + "-" + n, true, si);
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) namespace.insert(dir, "file" + i, false, si);
+        long inserted = System.nanoTime();
+        for (int i = 0; i < n; i++)
+        {
+            if (namespace.child(dir, "file" + i) == null) throw new IllegalStateException("lost file" + i);
+        }
+        long found = System.nanoTime();
+        if (namespace.list(dir).size() != n) throw new IllegalStateException("wrong listing");
+        long listed = System.nanoTime();
+        System.out.printf("%-9s %7d %8.3f s %7.3f s %7.3f s%n", backend, n, (inserted - start) / 1e9,
+                (found - inserted) / 1e9, (listed - found) / 1e9);
+    }
+}
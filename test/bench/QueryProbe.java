@@ -0,0 +1,123 @@
+package test.bench;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import naming.HeapNamespace;
+import naming.Namespace;
+import naming.StorageInfo;
+
+/** Measures the query throughput of the heap namespace while it is being changed: r reader threads
+    resolve random files and ask whether they are directories and where they are stored, the queries
+    behind /is_directory, /getstorage and exist(), while one writer creates and deletes files at a
+    fixed rate. Each reader count runs twice: on the lock-free tree as the server uses it, and with
+    every query and change under one ReentrantReadWriteLock, the global lock the tree would need
+    otherwise.
+
+    <p>
+    Readers can only scale with cores the machine has; the count of available processors is printed
+    first.
+
+    <p>
+    Run from the directory of the compiled classes: <code>java -cp .:gson-2.8.6.jar test.bench.QueryProbe</code>.
+ */
+public class QueryProbe
+{
+    private static final int[] READERS = {1, 2, 4, 8};
+    private static final int DIRECTORIES = 100;
+    private static final int FILES = 1_000;
+    /** changes per second of the writer */
+    private static final int WRITE_RATE = 10_000;
+    private static final long RUN_MS = 2_000;
+
+    private static volatile boolean running;
+
+    public static void main(String[] arguments) throws InterruptedException
+    {
+        StorageInfo si = new StorageInfo("127.0.0.1", 7000, 7001);
+        Namespace namespace = new HeapNamespace();
+        for (int d = 0; d < DIRECTORIES; d++)
+        {
+            for (int f = 0; f < FILES; f++) namespace.add("/query/d" + d + "/f" + f, si);
+        }
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors, writer at "
+                + WRITE_RATE + " changes/s");
+        System.out.println("readers   lock-free    global lock   (queries per second, changes per second)");
+        for (int r : READERS)
+        {
+            double[] free = run(namespace, si, r, null);
+            double[] locked = run(namespace, si, r, new ReentrantReadWriteLock());
+            System.out.printf("%7d %11.0f %6.0f %9.0f %6.0f%n", r, free[0], free[1], locked[0], locked[1]);
+        }
+    }
+
+    /** queries and changes per second with r readers, each query and change under lock if it is not null */
+    private static double[] run(Namespace namespace, StorageInfo si, int r, ReentrantReadWriteLock lock)
+            throws InterruptedException
+    {
+        AtomicLong queries = new AtomicLong();
+        AtomicLong changes = new AtomicLong();
+        running = true;
+        Thread[] readers = new Thread[r];
+        for (int i = 0; i < r; i++)
+        {
+            readers[i] = new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long done = 0;
+                while (running)
+                {
+                    String path = "/query/d" + random.nextInt(DIRECTORIES) + "/f" + random.nextInt(FILES);
+                    if (lock != null) lock.readLock().lock();
+                    try
+                    {
+                        Object[] chain = namespace.resolve(path);
+                        if (chain != null)
+                        {
+                            Object leaf = chain[chain.length - 1];
+                            if (!namespace.is_dir(leaf)) namespace.server(leaf);
+                        }
+                    }
+                    finally
+                    {
+                        if (lock != null) lock.readLock().unlock();
+                    }
+                    done++;
+                }
+                queries.addAndGet(done);
+            });
+        }
+        Thread writer = new Thread(() -> {
+            long interval = 1_000_000_000L / WRITE_RATE;
+            long next = System.nanoTime();
+            for (long i = 0; running; i++)
+            {
+                String path = "/query/d" + (i % DIRECTORIES) + "/new" + (i % FILES);
+                if (lock != null) lock.writeLock().lock();
+                try
+                {
+                    // creates a file, or deletes the one the same slot created a round before
+                    if (namespace.resolve(path) == null) namespace.create(path, false, si);
+                    else namespace.remove(path);
+                }
+                finally
+                {
+                    if (lock != null) lock.writeLock().unlock();
+                }
+                changes.incrementAndGet();
+                next += interval;
+                long wait = next - System.nanoTime();
+                if (wait > 0) LockSupport.parkNanos(wait);
+            }
+        });
+        long start = System.nanoTime();
+        for (Thread reader : readers) reader.start();
+        writer.start();
+        Thread.sleep(RUN_MS);
+        running = false;
+        for (Thread reader : readers) reader.join();
+        writer.join();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        return new double[] {queries.get() / seconds, changes.get() / seconds};
+    }
+}
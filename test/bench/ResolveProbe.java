@@ -0,0 +1,88 @@
+package test.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import naming.HeapNamespace;
+import naming.Namespace;
+import naming.OffHeapNamespace;
+import naming.StorageInfo;
+
+/** Times the resolution of a path whose last directory holds n files, for n from 10 to 1M: the mean
+    time of Namespace.resolve("/resolve-n/sub/file_k") for random k, on both backends. For comparison
+    it also times the lookup the tree did before children were indexed by name: a contains() over a list
+    of the children and a second scan to fetch the match, which grows with n.
+
+    <p>
+    Run from the directory of the compiled classes: <code>java -cp .:gson-2.8.6.jar test.bench.ResolveProbe</code>.
+ */
+public class ResolveProbe
+{
+    private static final int[] FAN_OUTS = {10, 100, 1_000, 10_000, 100_000, 1_000_000};
+    /** resolutions timed per fan-out, after as many to warm up */
+    private static final int LOOKUPS = 200_000;
+    /** the list scans are slow enough that fewer of them do */
+    private static final int SCANS = 2_000;
+
+    public static void main(String[] arguments)
+    {
+        StorageInfo si = new StorageInfo("127.0.0.1", 7000, 7001);
+        System.out.println("  fan-out      heap  off-heap      scan   (ns per lookup)");
+        for (int n : FAN_OUTS)
+        {
+            double heap = probe(new HeapNamespace(), n, si);
+            double off_heap = probe(new OffHeapNamespace(), n, si);
+            System.out.printf("%9d %9.0f %9.0f %9.0f%n", n, heap, off_heap, scan(n));
+        }
+    }
+
+    /** mean ns of resolving a random file of a directory of n files, three levels down */
+    private static double probe(Namespace namespace, int n, StorageInfo si)
+    {
+        // the heap tree is one per process: every run gets a directory of its own
+        Object top = namespace.insert(namespace.root(), "resolve-" + n, true, si);
+        Object dir = namespace.insert(top, "sub", true, si);
+        for (int i = 0; i < n; i++) namespace.insert(dir, "file_" + i, false, si);
+        String[] paths = new String[4096];
+        Random random = new Random(n);
+        for (int i = 0; i < paths.length; i++) paths[i] = "/resolve-" + n + "/sub/file_" + random.nextInt(n);
+        long sink = 0;
+        long start = 0;
+        for (int i = 0; i < 2 * LOOKUPS; i++)
+        {
+            if (i == LOOKUPS) start = System.nanoTime();
+            Object[] chain = namespace.resolve(paths[i & (paths.length - 1)]);
+            sink += chain.length;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink != 2L * LOOKUPS * 4) throw new IllegalStateException("lost a file");
+        return elapsed / (double) LOOKUPS;
+    }
+
+    /** mean ns of finding a random name among n children the way the tree did before they were indexed */
+    private static double scan(int n)
+    {
+        List<String> children = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) children.add("file_" + i);
+        Random random = new Random(n);
+        long sink = 0;
+        long start = 0;
+        for (int i = 0; i < 2 * SCANS; i++)
+        {
+            if (i == SCANS) start = System.nanoTime();
+            String name = "file_" + random.nextInt(n);
+            if (!children.contains(name)) throw new IllegalStateException("lost " + name);
+            for (String each : children)
+            {
+                if (each.equals(name))
+                {
+                    sink += each.length();
+                    break;
+                }
+            }
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 0) throw new IllegalStateException("nothing found");
+        return elapsed / (double) SCANS;
+    }
+}
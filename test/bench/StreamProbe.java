@@ -0,0 +1,218 @@
+package test.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import com.google.gson.Gson;
+import jsonhelper.ReadRequest;
+
+/** Measures reads of whole files from 4 KB to 4 GB through the storage server, by GET /storage_stream,
+    which sends the file from its FileChannel to the socket, and by the legacy POST /storage_read, which
+    reads it into a byte array and answers it Base64 encoded in JSON. For each it prints the throughput
+    the client sees in MB/s and the bytes the server allocated on the heap per read.
+
+    <p>
+    A naming server and a storage server are started in this JVM, on ports of their own and a temporary
+    storage directory, so the allocations of their threads can be read from the ThreadMXBean. The client
+    reads every response into one buffer and drops it. Each size is read until a second has passed,
+    after one read to warm up. The legacy read cannot ask for 2 GB or more, and a read the server fails,
+    for lack of heap typically, is reported as such and the larger sizes are skipped.
+
+    <p>
+    The files are written before the first read and deleted at the end, about 5.3 GB of disk. Arguments
+    are passed to the storage server, for example --http=nio for the NIO transport. Run from the
+    directory of the compiled classes:
+    <code>java -Xmx3g -cp .:gson-2.8.6.jar test.bench.StreamProbe [--http=nio]</code>.
+ */
+public class StreamProbe
+{
+    private static final long[] SIZES = {4L << 10, 64L << 10, 1L << 20, 16L << 20, 256L << 20, 1L << 30, 4L << 30};
+    private static final int SERVICE_PORT = 18080;
+    private static final int REGISTRATION_PORT = 18090;
+    private static final int CLIENT_PORT = 17000;
+    private static final int COMMAND_PORT = 17001;
+    private static final long RUN_NS = 1_000_000_000L;
+    /** longest the client waits for the server to send anything; a worker thread that runs out of heap
+     *  dies without answering */
+    private static final int TIMEOUT_MS = 30_000;
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final Gson gson = new Gson();
+    private static final byte[] sink = new byte[1 << 16];
+
+    public static void main(String[] arguments) throws Exception
+    {
+        File root = Files.createTempDirectory("stream-probe").toFile();
+        File dir = new File(root, "probe");
+        dir.mkdir();
+        for (long size : SIZES) fill(new File(dir, name(size)), size);
+
+        // both servers send their own output to a debug file
+        PrintStream out = System.out;
+        naming.NamingServer.main(new String[] {Integer.toString(SERVICE_PORT), Integer.toString(REGISTRATION_PORT)});
+        String[] options = new String[arguments.length + 4];
+        System.arraycopy(arguments, 0, options, 0, arguments.length);
+        options[arguments.length] = Integer.toString(CLIENT_PORT);
+        options[arguments.length + 1] = Integer.toString(COMMAND_PORT);
+        options[arguments.length + 2] = Integer.toString(REGISTRATION_PORT);
+        options[arguments.length + 3] = root.getPath();
+        storage.StorageServer.main(options);
+        System.setOut(out);
+
+        System.out.println(Runtime.getRuntime().availableProcessors() + " processors, "
+                + Runtime.getRuntime().maxMemory() / (1 << 20) + " MB of heap");
+        System.out.println("      size     stream MB/s  allocated/read     legacy MB/s  allocated/read");
+        boolean legacy = true;
+        try
+        {
+            for (long size : SIZES)
+            {
+                String path = "/probe/" + name(size);
+                double[] stream = run(path, size, false);
+                System.out.printf("%10s %15.1f %15s", name(size), stream[0], bytes(stream[1]));
+                if (legacy && size > Integer.MAX_VALUE)
+                {
+                    legacy = false;
+                    System.out.printf(" %31s%n", "length is an int, up to 2 GB");
+                    continue;
+                }
+                if (!legacy)
+                {
+                    System.out.printf(" %31s%n", "skipped");
+                    continue;
+                }
+                try
+                {
+                    double[] read = run(path, size, true);
+                    System.out.printf(" %15.1f %15s%n", read[0], bytes(read[1]));
+                }
+                catch (IOException e)
+                {
+                    legacy = false;
+                    System.out.printf(" %31s%n", "failed: " + e.getMessage());
+                }
+            }
+        }
+        finally
+        {
+            for (long size : SIZES) new File(dir, name(size)).delete();
+            dir.delete();
+            root.delete();
+        }
+        System.exit(0);
+    }
+
+    /** MB/s of reading the file at path of the given size in full, and bytes allocated by other threads
+     *  than this one per read */
+    private static double[] run(String path, long size, boolean legacy) throws IOException
+    {
+        read(path, size, legacy);
+        long reads = 0;
+        long allocated = -allocated();
+        long start = System.nanoTime();
+        long elapsed;
+        do
+        {
+            read(path, size, legacy);
+            reads++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < RUN_NS);
+        allocated += allocated();
+        return new double[] {size * reads / (elapsed / 1e9) / (1 << 20), allocated / (double) reads};
+    }
+
+    /** read the file in full through /storage_stream, or through /storage_read if legacy */
+    private static void read(String path, long size, boolean legacy) throws IOException
+    {
+        HttpURLConnection connection;
+        if (legacy)
+        {
+            connection = (HttpURLConnection) new URL("http://127.0.0.1:" + CLIENT_PORT + "/storage_read")
+                    .openConnection();
+            connection.setRequestMethod("POST");
+            connection.setRequestProperty("Content-Type", "application/json");
+            connection.setDoOutput(true);
+            connection.setReadTimeout(TIMEOUT_MS);
+            try (OutputStream body = connection.getOutputStream())
+            {
+                body.write(gson.toJson(new ReadRequest(path, 0, (int) size)).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        else
+        {
+            connection = (HttpURLConnection) new URL("http://127.0.0.1:" + CLIENT_PORT + "/storage_stream?path="
+                    + URLEncoder.encode(path, StandardCharsets.UTF_8)).openConnection();
+        }
+        connection.setReadTimeout(TIMEOUT_MS);
+        if (connection.getResponseCode() != 200)
+        {
+            throw new IOException("HTTP " + connection.getResponseCode());
+        }
+        long received = 0;
+        try (InputStream body = connection.getInputStream())
+        {
+            for (int n; (n = body.read(sink)) > 0; ) received += n;
+        }
+        // Base64 in JSON is a third larger than the file
+        if (legacy ? received < size * 4 / 3 : received != size)
+        {
+            throw new IOException("short response of " + received + " bytes");
+        }
+    }
+
+    /** bytes allocated so far by the live threads other than this one */
+    private static long allocated()
+    {
+        long[] ids = THREADS.getAllThreadIds();
+        long[] each = THREADS.getThreadAllocatedBytes(ids);
+        long total = 0;
+        long self = Thread.currentThread().getId();
+        for (int i = 0; i < ids.length; i++)
+        {
+            if (ids[i] != self && each[i] > 0) total += each[i];
+        }
+        return total;
+    }
+
+    /** write size bytes of a repeating pattern to file */
+    private static void fill(File file, long size) throws IOException
+    {
+        ByteBuffer chunk = ByteBuffer.allocateDirect(1 << 20);
+        for (int i = 0; i < chunk.capacity(); i++) chunk.put(i, (byte) (i * 31));
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            for (long written = 0; written < size; )
+            {
+                chunk.clear().limit((int) Math.min(chunk.capacity(), size - written));
+                written += channel.write(chunk);
+            }
+        }
+    }
+
+    private static String name(long size)
+    {
+        if (size >= 1L << 30) return (size >> 30) + "GB";
+        if (size >= 1L << 20) return (size >> 20) + "MB";
+        return (size >> 10) + "KB";
+    }
+
+    private static String bytes(double n)
+    {
+        if (n >= 1 << 20) return String.format("%.1f MB", n / (1 << 20));
+        if (n >= 1 << 10) return String.format("%.1f KB", n / (1 << 10));
+        return String.format("%.0f B", n);
+    }
+}
@@ -0,0 +1,249 @@
+package test.naming;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+
+import jsonhelper.ExceptionReturn;
+import jsonhelper.LockRequest;
+import test.common.Path;
+import test.util.TestFailed;
+
+/** Tests that the naming server breaks a deadlock between clients that do not
+    name an owner.
+
+    <p>
+    Two clients each keep one HTTP connection open, as most HTTP clients do, and
+    send no <code>owner</code> with their requests. The first locks
+    <code>/directory/file1</code> and the second <code>/directory/file2</code>,
+    both for exclusive access. Then each asks for the file the other holds. The
+    test checks that:
+    <ul>
+    <li>Exactly one of the two requests fails with
+        <code>DeadlockException</code>.</li>
+    <li>Once the client whose request failed unlocks the file it holds, the
+        other client is granted its request.</li>
+    </ul>
+ */
+public class DeadlockTest extends NamingTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server deadlock detection between clients";
+    /** Prerequisites. */
+    public static final Class[] prerequisites = new Class[] {LockTest.class};
+
+    /** Storage server used in the test. The purpose of this storage server is
+        merely to register some files. It is not used otherwise. */
+    private TestStorageServer   storage_server = null;
+
+    private final Path          file1 = new Path("/directory/file1");
+    private final Path          file2 = new Path("/directory/file2");
+
+    /** Bodies of the answers to the second request of each client, null while
+        it has not been answered. */
+    private final String[]      answers = new String[2];
+    /** Indicates that the test has completed and all waits are cancelled. */
+    private boolean             wake_all = false;
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        // One client each; an HttpClient keeps its connection open between
+        // requests.
+        HttpClient[] clients = {newClient(), newClient()};
+        Path[] first = {file1, file2};
+
+        task("locking " + file1 + " and " + file2 + " from two clients");
+        for(int i = 0; i < 2; i++)
+        {
+            HttpResponse<String> response = lock(clients[i], "/lock", first[i]);
+            if(!response.body().isEmpty())
+            {
+                throw new TestFailed("unable to lock " + first[i] + ": " +
+                                     response.body());
+            }
+        }
+
+        task("waiting for one of two clients that wait for each other to " +
+             "fail with DeadlockException");
+        for(int i = 0; i < 2; i++)
+        {
+            new Thread(new CrossingUser(clients[i], first[1 - i], i)).start();
+        }
+
+        int victim = -1;
+        synchronized(this)
+        {
+            while(victim < 0 && !wake_all)
+            {
+                for(int i = 0; i < 2; i++)
+                {
+                    if(answers[i] != null) victim = i;
+                }
+                if(victim < 0)
+                {
+                    try
+                    {
+                        wait();
+                    }
+                    catch(InterruptedException e) { }
+                }
+            }
+        }
+
+        if(victim < 0)
+            return;
+
+        ExceptionReturn failed =
+            gson.fromJson(answers[victim], ExceptionReturn.class);
+        if(failed == null ||
+           !"DeadlockException".equals(failed.exception_type))
+        {
+            throw new TestFailed("request of a deadlocked client was " +
+                                 "answered without DeadlockException: " +
+                                 answers[victim]);
+        }
+
+        task("unlocking the file the withdrawn client holds");
+        HttpResponse<String> response =
+            lock(clients[victim], "/unlock", first[victim]);
+        if(!response.body().isEmpty())
+        {
+            throw new TestFailed("unable to unlock " + first[victim] + ": " +
+                                 response.body());
+        }
+
+        task("waiting for the other client to be granted its lock");
+        int other = 1 - victim;
+        synchronized(this)
+        {
+            while(answers[other] == null && !wake_all)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+
+        if(answers[other] == null)
+            return;
+
+        if(!answers[other].isEmpty())
+        {
+            throw new TestFailed("both deadlocked clients were refused: " +
+                                 answers[other]);
+        }
+
+        lock(clients[other], "/unlock", first[1 - other]);
+        lock(clients[other], "/unlock", first[other]);
+    }
+
+    /** Creates a client that speaks HTTP/1.1 over one kept-alive connection. */
+    private static HttpClient newClient()
+    {
+        return HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1)
+            .build();
+    }
+
+    /** Sends a lock or unlock request for exclusive access to the path, without
+        an owner, through the given client. */
+    private HttpResponse<String> lock(HttpClient client, String method,
+                                      Path path) throws TestFailed
+    {
+        LockRequest request = new LockRequest(path.toString(), true);
+        try
+        {
+            return client.send(HttpRequest.newBuilder()
+                    .uri(URI.create("http://localhost:" + SERVICE_PORT + method))
+                    .setHeader("Content-Type", "application/json")
+                    .POST(HttpRequest.BodyPublishers.ofString(gson.toJson(request)))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call " + method + " on " + path, t);
+        }
+    }
+
+    /** Starts a storage server that registers the two files. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        super.initialize();
+
+        try
+        {
+            storage_server = new TestStorageServer(this);
+            storage_server.start(REGISTRATION_PORT, new Path[] {file1, file2},
+                    null);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start test storage server", t);
+        }
+    }
+
+    /** Stops all servers and wakes all threads. */
+    @Override
+    protected void clean()
+    {
+        super.clean();
+
+        if(storage_server != null)
+        {
+            storage_server.stop();
+            storage_server = null;
+        }
+
+        synchronized(this)
+        {
+            wake_all = true;
+            notifyAll();
+        }
+    }
+
+    /** Thread that asks, through a client that already holds one file, for
+        the file the other client holds. */
+    private class CrossingUser implements Runnable
+    {
+        private final HttpClient    client;
+        private final Path          path;
+        /** Index of the client, where the answer is recorded. */
+        private final int           index;
+
+        /** Creates the <code>CrossingUser</code> and sets its fields. */
+        CrossingUser(HttpClient client, Path path, int index)
+        {
+            this.client = client;
+            this.path = path;
+            this.index = index;
+        }
+
+        /** Runs the thread. */
+        @Override
+        public void run()
+        {
+            HttpResponse<String> response;
+            try
+            {
+                response = lock(client, "/lock", path);
+            }
+            catch(TestFailed e)
+            {
+                failure(e);
+                return;
+            }
+
+            synchronized(DeadlockTest.this)
+            {
+                answers[index] = response.body();
+                DeadlockTest.this.notifyAll();
+            }
+        }
+    }
+}
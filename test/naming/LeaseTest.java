@@ -0,0 +1,205 @@
+package test.naming;
+
+import java.net.http.HttpResponse;
+
+import jsonhelper.LockRequest;
+import test.common.Path;
+import test.util.TestFailed;
+
+/** Tests that locks taken without a lease are kept until they are unlocked.
+
+    <p>
+    Clients written before leases existed never ask for one and never renew
+    their locks. This test locks the root directory for exclusive access without
+    a lease and keeps it for several ticks of the naming server's lease reaper.
+    It then checks that:
+    <ul>
+    <li>A second thread asking for the root directory is still waiting for it.
+        </li>
+    <li>The first lock can still be released through its handle, which is
+        refused for a lock whose lease ran out.</li>
+    <li>The second thread takes the lock once the first has been released.</li>
+    </ul>
+ */
+public class LeaseTest extends NamingTest
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking that locks without a lease do not expire";
+    /** Prerequisites. */
+    public static final Class[] prerequisites = new Class[] {LockTest.class};
+
+    /** Path to the root directory. */
+    private final Path          root = new Path("/");
+
+    /** Time, in milliseconds, the first lock is held before the second thread
+        asks for it. The naming server's lease reaper runs every 100
+        milliseconds, so a lock that it expires is gone well before this. */
+    private static final int    HOLD = 1000;
+    /** Time, in milliseconds, the second thread is given to take the lock
+        while the first still holds it. */
+    private static final int    DELAY = 250;
+
+    /** Indicates that the second thread has taken the lock. */
+    private boolean             second_locked = false;
+    /** Indicates that the test is complete and any waiting threads should be
+        awakened. */
+    private boolean             wake_all = false;
+
+    /** Performs the test. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        task("locking " + root + " for exclusive access without a lease");
+        String handle;
+        try
+        {
+            HttpResponse<String> response = getResponse("/lock", SERVICE_PORT,
+                                                 new LockRequest(root.toString(), true));
+            if(!response.body().isEmpty())
+            {
+                throw new TestFailed("unable to lock root: " + response.body());
+            }
+            if(response.headers().firstValue("Lock-Lease").isPresent())
+            {
+                throw new TestFailed("lock without a lease was given one");
+            }
+            handle = response.headers().firstValue("Lock-Handle").orElse(null);
+            if(handle == null)
+            {
+                throw new TestFailed("lock was granted without a handle");
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to lock root", t);
+        }
+
+        task("holding the lock on " + root + " past the lease reaper");
+        sleep(HOLD);
+
+        new Thread(new SecondUser()).start();
+        sleep(DELAY);
+
+        synchronized(this)
+        {
+            if(second_locked)
+            {
+                throw new TestFailed("lock without a lease was taken back " +
+                                     "by the naming server");
+            }
+        }
+
+        task("unlocking " + root + " through its handle");
+        try
+        {
+            LockRequest request = new LockRequest(root.toString(), true);
+            request.handle = handle;
+            HttpResponse<String> response = getResponse("/unlock", SERVICE_PORT, request);
+            if(!response.body().isEmpty())
+            {
+                throw new TestFailed("lock without a lease could not be " +
+                                     "unlocked: " + response.body());
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to unlock root", t);
+        }
+
+        task("waiting for the second thread to lock " + root);
+        synchronized(this)
+        {
+            while(!second_locked && !wake_all)
+            {
+                try
+                {
+                    wait();
+                }
+                catch(InterruptedException e) { }
+            }
+        }
+    }
+
+    /** Sleeps for the given number of milliseconds, unless the test ends
+        first. */
+    private void sleep(int milliseconds)
+    {
+        long    current_time = System.currentTimeMillis();
+        long    wake_time = current_time + milliseconds;
+
+        synchronized(this)
+        {
+            while(current_time < wake_time && !wake_all)
+            {
+                try
+                {
+                    wait(wake_time - current_time);
+                }
+                catch(InterruptedException e) { }
+
+                current_time = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /** Wakes all threads. */
+    @Override
+    protected void clean()
+    {
+        super.clean();
+
+        synchronized(this)
+        {
+            wake_all = true;
+            notifyAll();
+        }
+    }
+
+    /** Thread that locks the root directory for shared access once the first
+        lock has been held for a while, then releases it. */
+    private class SecondUser implements Runnable
+    {
+        /** Runs the thread. */
+        @Override
+        public void run()
+        {
+            try
+            {
+                LockRequest request = new LockRequest(root.toString(), false);
+                HttpResponse<String> response = getResponse("/lock", SERVICE_PORT, request);
+                if(!response.body().isEmpty())
+                {
+                    throw new Throwable(response.body());
+                }
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("unable to lock root", t));
+                return;
+            }
+
+            synchronized(LeaseTest.this)
+            {
+                second_locked = true;
+                LeaseTest.this.notifyAll();
+            }
+
+            try
+            {
+                LockRequest request = new LockRequest(root.toString(), false);
+                HttpResponse<String> response = getResponse("/unlock", SERVICE_PORT, request);
+                if(!response.body().isEmpty())
+                {
+                    throw new Throwable(response.body());
+                }
+            }
+            catch(Throwable t)
+            {
+                failure(new TestFailed("unable to unlock root", t));
+            }
+        }
+    }
+}